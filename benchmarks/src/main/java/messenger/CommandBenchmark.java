@@ -0,0 +1,65 @@
+package messenger;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Parsing the user's input the way the command handlers do.
+ *  - msgto: tokenize, read the receiver and take the message body of the given number of words
+ *  - creategroup: tokenize a /creategroup with 10 members and read every argument
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    private static final String CREATE_GROUP = "/creategroup g1 user1 user2 user3 user4 user5 user6 user7 user8 user9";
+
+    /*
+     * A /msgto line with a body of the given number of words
+     */
+    @State(Scope.Benchmark)
+    public static class Line {
+        @Param({"8", "200", "2000"})
+        int words;
+        String msgto;
+
+        @Setup
+        public void setUp() {
+            StringBuilder line = new StringBuilder("/msgto vader");
+            for (int i = 0; i < words; i++) {
+                line.append(" word").append(i);
+            }
+            msgto = line.toString();
+        }
+    }
+
+
+    @Benchmark
+    public String msgto(Line line) {
+        Command command = new Command(line.msgto);
+        return command.getArg(0) + " " + command.getRest(1);
+    }
+
+
+    @Benchmark
+    public void creategroup(Blackhole blackhole) {
+        Command command = new Command(CREATE_GROUP);
+        blackhole.consume(command.getAction());
+        for (int i = 0; i < command.getArgSize(); i++) {
+            blackhole.consume(command.getArg(i));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package messenger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Group.sendMessage fan-out to the given number of members.
+ * The members are active in an in-memory UserLog with messengers that only count the messages,
+ * the group message log is written to a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupBenchmark {
+    @Param({"10", "100", "1000"})
+    int members;
+    private UserLog userLog;
+    private Group group;
+    private Message message;
+
+    /*
+     * A member's messenger that drops the messages
+     */
+    static class NullMessenger extends Messenger {
+        long sent = 0;
+
+        @Override
+        public void offerMessage(String message) {
+            sent += message.length();
+        }
+    }
+
+
+    @Setup
+    public void setUp() throws IOException {
+        userLog = new UserLog(null);
+        StringBuilder command = new StringBuilder("/creategroup bench");
+        for (int i = 0; i < members; i++) {
+            String name = "user" + i;
+            userLog.appendUser(new UserRecord(name, "(127.0.0.1, " + i + ")", 6000), new NullMessenger());
+            if (i > 0) {
+                command.append(' ').append(name);
+            }
+        }
+        group = new Group(new Command(command.toString()), "user0");
+        Path directory = Files.createTempDirectory("group");
+        Path file = directory.resolve("bench_messageLog.txt");
+        directory.toFile().deleteOnExit();
+        file.toFile().deleteOnExit();
+        group.getMessageLog().setLogPath(file.toString());
+        message = new Message(" hello there, how are you", "user0");
+    }
+
+
+    @Benchmark
+    public void sendMessage() throws IOException {
+        group.sendMessage(message, userLog);
+    }
+}
@@ -0,0 +1,325 @@
+package messenger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Headless load generator, simulates many users against a Server in this JVM on loopback.
+ * Every user logs in like the Client (username, password, LOGIN_SUCCEEDED, UDP port) with frames,
+ * the users are split into groups, then sender threads issue RATE commands per second
+ * picked by the MIX (e.g. msgto=60,groupmsg=30,activeuser=10) from random users.
+ * The /msgto and /groupmsg bodies are stamped with the send time and matched by the receiving
+ * users, which report the end-to-end delivery latency percentiles.
+ *
+ * Run from a scratch directory, the server writes its logs to the working directory:
+ *   java -cp benchmarks/target/benchmarks.jar messenger.LoadGenerator nio 1000 30 5000
+ * The credentials of the users are generated, -Dload.payload sets the message size (default 64)
+ * and -Dload.senders the number of sender threads (default 4).
+ */
+public class LoadGenerator {
+    private static final String STAMP = "#";
+    private static final PrintStream out = System.out;
+    private static final int GROUP_SIZE = 10;
+    private static final int PAYLOAD = Settings.getInt("load.payload", 64);
+    private static final int SENDERS = Settings.getInt("load.senders", 4);
+    private static final LatencyHistogram msgtoLatency = new LatencyHistogram();
+    private static final LatencyHistogram groupmsgLatency = new LatencyHistogram();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static volatile boolean running = true;
+
+    /*
+     * A simulated user, its reader thread handles everything the server sends
+     */
+    private static class User implements Runnable {
+        final String name;
+        final Messenger messenger;
+        String group;
+        CountDownLatch groupCreated;
+
+        User(String name, Messenger messenger) {
+            this.name = name;
+            this.messenger = messenger;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    received(messenger.readMessage());
+                }
+            } catch (IOException e) {
+                if (running) {
+                    errors.increment();
+                }
+            }
+        }
+
+        /**
+         * Record the latency of a stamped message
+         * @param message String
+         */
+        private void received(String message) {
+            int stamp = message.indexOf(STAMP);
+            if (stamp >= 0) {
+                int end = message.indexOf(' ', stamp);
+                long sentAt = Long.parseLong(message.substring(stamp + 1, end < 0 ? message.length() : end));
+                // Group messages are "timestamp, group, sender: body", direct ones "timestamp, sender: body"
+                LatencyHistogram histogram = message.indexOf(", ") != message.lastIndexOf(", ", stamp) ? groupmsgLatency : msgtoLatency;
+                histogram.record(System.nanoTime() - sentAt);
+            } else if (message.startsWith("Group chat room created")) {
+                groupCreated.countDown();
+            } else if (message.startsWith("Error") || message.startsWith("The group chat") || message.startsWith("You are not")) {
+                errors.increment();
+            }
+        }
+    }
+
+
+    /**
+     * Find a free local port for the server
+     * @return int port
+     * @throws IOException
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+
+    /**
+     * Write the credentials of the simulated users to a temporary file
+     * @param users int
+     * @return Path
+     * @throws IOException
+     */
+    private static Path writeCredentials(int users) throws IOException {
+        Path file = Files.createTempFile("load_credentials", ".txt");
+        file.toFile().deleteOnExit();
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < users; i++) {
+                writer.write("load" + i + " pw" + i);
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+
+    /**
+     * Login a user like the Client and wait for the menu
+     * @param port int server port
+     * @param i int user number
+     * @return Messenger of the logged in user
+     * @throws IOException
+     */
+    private static Messenger login(int port, int i) throws IOException {
+        Messenger messenger = new Messenger(new Socket("127.0.0.1", port));
+        messenger.requestFraming();
+        messenger.readMessage();                        // Please enter username:
+        messenger.sendMessage("load" + i);
+        messenger.readMessage();                        // Please enter password:
+        messenger.sendMessage("pw" + i);
+        String reply = messenger.readMessage();
+        if (!reply.equals("LOGIN_SUCCEEDED")) {
+            throw new IOException("Login failed for load" + i + ": " + reply);
+        }
+        messenger.sendMessage(Integer.toString(7000 + i));
+        messenger.readMessage();                        // Welcome
+        messenger.readMessage();                        // Menu
+        return messenger;
+    }
+
+
+    /**
+     * Parse the command mix
+     * @param mix String e.g. msgto=60,groupmsg=30,activeuser=10
+     * @return int[] cumulative weights of msgto, groupmsg and activeuser
+     */
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[3];
+        for (String part : mix.split(",")) {
+            String[] pair = part.split("=");
+            int weight = Integer.parseInt(pair[1].trim());
+            switch (pair[0].trim()) {
+                case "msgto":
+                    weights[0] = weight;
+                    break;
+                case "groupmsg":
+                    weights[1] = weight;
+                    break;
+                case "activeuser":
+                    weights[2] = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown command in mix: " + pair[0]);
+            }
+        }
+        weights[1] += weights[0];
+        weights[2] += weights[1];
+        if (weights[2] == 0) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return weights;
+    }
+
+
+    /**
+     * Send one command of the mix from a random user
+     * @param users List<User>
+     * @param mix int[] cumulative weights
+     * @param padding String the message body after the stamp
+     * @throws IOException
+     */
+    private static void sendOne(List<User> users, int[] mix, String padding) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(users.size());
+        User user = users.get(from);
+        int pick = random.nextInt(mix[2]);
+        if (pick < mix[0]) {
+            // Anyone but the sender
+            User receiver = users.get((from + 1 + random.nextInt(users.size() - 1)) % users.size());
+            user.messenger.sendMessage("/msgto " + receiver.name + " " + STAMP + System.nanoTime() + " " + padding);
+        } else if (pick < mix[1]) {
+            user.messenger.sendMessage("/groupmsg " + user.group + " " + STAMP + System.nanoTime() + " " + padding);
+        } else {
+            user.messenger.sendMessage("/activeuser");
+        }
+        sent.increment();
+    }
+
+
+    /**
+     * Print the percentiles of a histogram
+     * @param name String
+     * @param histogram LatencyHistogram in nanoseconds
+     */
+    private static void report(String name, LatencyHistogram histogram) {
+        out.println(String.format("%-10s %,10d delivered  p50 %,8d us  p99 %,8d us  p999 %,8d us  max %,8d us",
+            name, histogram.getCount(),
+            histogram.getValueAtPercentile(50) / 1000,
+            histogram.getValueAtPercentile(99) / 1000,
+            histogram.getValueAtPercentile(99.9) / 1000,
+            histogram.getMax() / 1000));
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            out.println("===== Error usage: java LoadGenerator classic|virtual|nio USERS SECONDS RATE [MIX] =====");
+            return;
+        }
+        String mode = args[0];
+        int userCount = Integer.parseInt(args[1]);
+        int seconds = Integer.parseInt(args[2]);
+        int rate = Integer.parseInt(args[3]);
+        int[] mix = parseMix(args.length > 4 ? args[4] : "msgto=60,groupmsg=30,activeuser=10");
+        if (userCount < 2) {
+            out.println("===== At least 2 users =====");
+            return;
+        }
+
+        // The server authenticates the generated users and keeps its output away from the report
+        System.setProperty("messenger.credentials", writeCredentials(userCount).toString());
+        int port = freePort();
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[] {Integer.toString(port), "3", mode});
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        List<User> users = new ArrayList<>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            User user = new User("load" + i, login(port, i));
+            users.add(user);
+            Thread reader = new Thread(null, user, "load-reader-" + i, 256 * 1024);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        out.println(userCount + " users logged in (" + mode + ")");
+
+        // Groups of GROUP_SIZE users created by their first member, the last group takes the rest
+        int groups = Math.max(1, userCount / GROUP_SIZE);
+        CountDownLatch groupCreated = new CountDownLatch(groups);
+        for (int g = 0; g < groups; g++) {
+            int last = g == groups - 1 ? userCount : (g + 1) * GROUP_SIZE;
+            StringBuilder command = new StringBuilder("/creategroup load" + g);
+            for (int i = g * GROUP_SIZE; i < last; i++) {
+                users.get(i).group = "load" + g;
+                users.get(i).groupCreated = groupCreated;
+                if (i != g * GROUP_SIZE) {
+                    command.append(' ').append(users.get(i).name);
+                }
+            }
+            users.get(g * GROUP_SIZE).messenger.sendMessage(command.toString());
+        }
+        if (!groupCreated.await(30, TimeUnit.SECONDS)) {
+            out.println("===== Groups not created in time =====");
+            System.exit(1);
+        }
+        Thread.sleep(200);
+
+        // Open loop: the senders keep the rate whatever the server does
+        StringBuilder body = new StringBuilder();
+        while (body.length() < PAYLOAD) {
+            body.append('x');
+        }
+        String padding = body.toString();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * SENDERS / Math.max(1, rate);
+        List<Thread> senders = new ArrayList<>();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (int s = 0; s < SENDERS; s++) {
+            Thread sender = new Thread(() -> {
+                long next = System.nanoTime();
+                try {
+                    while (running && next < end) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        sendOne(users, mix, padding);
+                        next += intervalNanos;
+                    }
+                } catch (IOException e) {
+                    errors.increment();
+                }
+            }, "load-sender-" + s);
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        // Let the messages in flight arrive
+        Thread.sleep(1000);
+        running = false;
+
+        out.println(String.format("%,d commands in %.1f s: %,.0f commands/s (target %,d)", sent.sum(), elapsed, sent.sum() / elapsed, rate));
+        report("msgto", msgtoLatency);
+        report("groupmsg", groupmsgLatency);
+        out.println("errors:    " + errors.sum());
+        System.exit(0);
+    }
+}
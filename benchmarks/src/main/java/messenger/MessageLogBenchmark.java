@@ -0,0 +1,51 @@
+package messenger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Throughput of MessageLog.logMessage into a file in a temporary directory.
+ * The senders wait once the appender queue is full, so this is the appender's throughput.
+ * Run with -t to add senders, the durability is set as for the server, e.g.:
+ *   java -jar benchmarks/target/benchmarks.jar MessageLogBenchmark -t 4 -jvmArgsAppend -Dmessenger.log.durability=batch
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogBenchmark {
+    private MessageLog messageLog;
+    private Message message;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        Path directory = Files.createTempDirectory("messagelog");
+        Path file = directory.resolve("messagelog.txt");
+        directory.toFile().deleteOnExit();
+        file.toFile().deleteOnExit();
+        messageLog = new MessageLog();
+        messageLog.setLogPath(file.toString());
+        message = new Message(" hello there, how are you", "vader");
+    }
+
+
+    @Benchmark
+    public void logMessage() {
+        messageLog.logMessage(message);
+    }
+}
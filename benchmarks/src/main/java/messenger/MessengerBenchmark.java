@@ -0,0 +1,82 @@
+package messenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Sending a message from one Messenger to another over a loopback socket pair:
+ * encode, queue, write on the writer, read and decode.
+ * In the legacy writeUTF format or in negotiated frames, with messages of the given size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessengerBenchmark {
+    @Param({"false", "true"})
+    boolean framed;
+    @Param({"64", "1024", "16384"})
+    int size;
+    private Socket senderSocket;
+    private Socket receiverSocket;
+    private Messenger sender;
+    private Messenger receiver;
+    private String message;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            senderSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            receiverSocket = serverSocket.accept();
+        }
+        senderSocket.setTcpNoDelay(true);
+        receiverSocket.setTcpNoDelay(true);
+        sender = new Messenger(senderSocket);
+        receiver = new Messenger(receiverSocket);
+        if (framed) {
+            // Both sides switch once the receiver has read the request and the sender the confirmation
+            sender.requestFraming();
+            sender.sendMessage("ready");
+            receiver.readMessage();
+            receiver.sendMessage("ready");
+            sender.readMessage();
+        }
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append("hello there ");
+        }
+        message = text.substring(0, size);
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        senderSocket.close();
+        receiverSocket.close();
+    }
+
+
+    @Benchmark
+    public String sendAndRead() throws IOException {
+        sender.sendMessage(message);
+        return receiver.readMessage();
+    }
+}
@@ -0,0 +1,156 @@
+package messenger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Sends a file between two P2P endpoints of this JVM over loopback, like /p2pvideo between two clients.
+ * Reports the throughput, the garbage collections and the bytes allocated by the sending and
+ * receiving threads during the transfer.
+ *
+ * Run from a scratch directory, the received file is written to the working directory:
+ *   java -Dmessenger.p2p.chunk=61440 -cp benchmarks/target/benchmarks.jar messenger.P2pBenchmark 1024
+ */
+public class P2pBenchmark {
+    private static final PrintStream out = System.out;
+
+
+    /**
+     * Write a file of random bytes
+     * @param megabytes int
+     * @return Path
+     * @throws IOException
+     */
+    private static Path writeFile(int megabytes) throws IOException {
+        Path file = Files.createTempFile("p2p", ".bin");
+        file.toFile().deleteOnExit();
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream output = Files.newOutputStream(file)) {
+            for (int i = 0; i < megabytes; i++) {
+                block[0] = (byte) i;
+                output.write(block);
+            }
+        }
+        return file;
+    }
+
+
+    /**
+     * Sum the collections of every garbage collector
+     * @return long[] count and milliseconds
+     */
+    private static long[] collections() {
+        long[] total = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total[0] += Math.max(0, collector.getCollectionCount());
+            total[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+
+    /**
+     * Sum the bytes allocated by the current thread and the P2P threads
+     * @return long bytes, -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("p2p-")) {
+                total += threads.getThreadAllocatedBytes(thread.getId());
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     * Compare two files
+     * @param first Path
+     * @param second Path
+     * @return boolean true if the contents are the same
+     * @throws IOException
+     */
+    private static boolean sameContent(Path first, Path second) throws IOException {
+        try (FileChannel a = FileChannel.open(first); FileChannel b = FileChannel.open(second)) {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            ByteBuffer bufferA = ByteBuffer.allocateDirect(1024 * 1024);
+            ByteBuffer bufferB = ByteBuffer.allocateDirect(1024 * 1024);
+            while (a.read(bufferA) > 0) {
+                while (bufferB.position() < bufferA.position() && b.read(bufferB) > 0) {
+                    // Until as many bytes as from the first file
+                }
+                if (!bufferA.flip().equals(bufferB.flip())) {
+                    return false;
+                }
+                bufferA.clear();
+                bufferB.clear();
+            }
+            return true;
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            out.println("===== Error usage: java P2pBenchmark MEGABYTES =====");
+            return;
+        }
+        int megabytes = Integer.parseInt(args[0]);
+        Path source = writeFile(megabytes);
+        Path received = Paths.get(source.getFileName().toString());
+
+        DatagramChannel senderChannel = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        DatagramChannel receiverChannel = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        CountDownLatch done = new CountDownLatch(2);
+        P2pEndpoint sender = new P2pEndpoint(senderChannel, summary -> { });
+        P2pEndpoint receiver = new P2pEndpoint(receiverChannel, summary -> {
+            out.println(summary);
+            done.countDown();
+        });
+        Audience audience = new Audience(((InetSocketAddress) receiverChannel.getLocalAddress()).getPort(), "127.0.0.1");
+        // The receiver expects the transfers directly, without a server
+        SocketAddress senderAddress = senderChannel.getLocalAddress();
+        P2pEndpoint.Announcer announcer = (transfer, size) -> receiver.expect("benchmark", senderAddress, transfer, size);
+
+        // A warm up transfer, then the measured one
+        Path warmup = writeFile(16);
+        sender.sendFile(warmup.toString(), audience, "benchmark", announcer);
+        Thread.sleep(200);
+        Files.deleteIfExists(Paths.get(warmup.getFileName().toString()));
+        long[] gcBefore = collections();
+        long allocatedBefore = allocatedBytes();
+        out.println(sender.sendFile(source.toString(), audience, "benchmark", announcer));
+        done.await();
+        long[] gcAfter = collections();
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        out.println(String.format("%d MB, chunk %d bytes: %d collections (%d ms), %,d bytes allocated",
+            megabytes, Settings.getInt("messenger.p2p.chunk", 8192), gcAfter[0] - gcBefore[0],
+            gcAfter[1] - gcBefore[1], allocated));
+        boolean same = sameContent(source, received);
+        out.println(same ? "The received file is identical" : "===== The received file differs =====");
+        Files.deleteIfExists(received);
+        System.exit(same ? 0 : 1);
+    }
+}
@@ -0,0 +1,198 @@
+package messenger;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Compares the server modes with many mostly idle sessions.
+ * Starts a Server in this JVM, opens the idle connections (they wait at the username prompt),
+ * then logs in the users of credentials.txt and measures the /activeuser round trip.
+ * Reports the memory per session and the command latency percentiles.
+ *
+ * Run one mode per JVM from the directory with credentials.txt, e.g.:
+ *   java -Xss1m -cp benchmarks/target/benchmarks.jar messenger.SessionBenchmark virtual 50000 20000
+ * 50k sessions need about 100k file descriptors (ulimit -n), the idle connections are
+ * spread over several loopback source addresses to not run out of ephemeral ports.
+ */
+public class SessionBenchmark {
+    private static final int CONNECTIONS_PER_ADDRESS = 20000;
+    private static final PrintStream out = System.out;
+
+
+    /**
+     * Get the resident set size of this process (Linux only)
+     * @return long bytes, -1 if unknown
+     */
+    private static long residentSetSize() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux
+        }
+        return -1;
+    }
+
+
+    /**
+     * Get the used heap after a full collection
+     * @return long bytes
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+
+    /**
+     * Find a free local port for the server
+     * @return int port
+     * @throws IOException
+     */
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+
+    /**
+     * Read the users from credentials.txt
+     * @return List<String[]> username and password pairs
+     * @throws IOException
+     */
+    private static List<String[]> credentials() throws IOException {
+        List<String[]> users = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader("credentials.txt"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\\s+");
+                if (parts.length >= 2) {
+                    users.add(parts);
+                }
+            }
+        }
+        return users;
+    }
+
+
+    /**
+     * Login a user and wait for the menu
+     * @param port int server port
+     * @param user String[] username and password
+     * @param udpPort int the announced UDP port
+     * @return Messenger of the logged in user
+     * @throws IOException
+     */
+    private static Messenger login(int port, String[] user, int udpPort) throws IOException {
+        Messenger messenger = new Messenger(new Socket("127.0.0.1", port));
+        messenger.readMessage();                        // Please enter username:
+        messenger.sendMessage(user[0]);
+        messenger.readMessage();                        // Please enter password:
+        messenger.sendMessage(user[1]);
+        String reply = messenger.readMessage();
+        if (!reply.equals("LOGIN_SUCCEEDED")) {
+            throw new IOException("Login failed for " + user[0] + ": " + reply);
+        }
+        messenger.sendMessage(Integer.toString(udpPort));
+        messenger.readMessage();                        // Welcome
+        messenger.readMessage();                        // Menu
+        return messenger;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            out.println("===== Error usage: java SessionBenchmark classic|virtual|nio SESSIONS [COMMANDS] =====");
+            return;
+        }
+        String mode = args[0];
+        int sessions = Integer.parseInt(args[1]);
+        int commands = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int port = freePort();
+
+        // Keep the server output away from the report
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[] {Integer.toString(port), "3", mode});
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+        int threadsBefore = Thread.activeCount();
+
+        // Idle sessions, waiting at the username prompt
+        List<Socket> idle = new ArrayList<>(sessions);
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            Socket socket = new Socket();
+            socket.bind(new InetSocketAddress("127.0.0." + (2 + i / CONNECTIONS_PER_ADDRESS), 0));
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            idle.add(socket);
+        }
+        double connectSeconds = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(2000);
+
+        long heapAfter = usedHeap();
+        long rssAfter = residentSetSize();
+        int threadsAfter = Thread.activeCount();
+
+        // Active users measure the /activeuser round trip
+        List<String[]> users = credentials();
+        List<Messenger> active = new ArrayList<>();
+        for (int i = 0; i < users.size(); i++) {
+            active.add(login(port, users.get(i), 7000 + i));
+        }
+        long[] latencies = new long[commands];
+        for (int i = 0; i < commands; i++) {
+            Messenger messenger = active.get(i % active.size());
+            long sent = System.nanoTime();
+            messenger.sendMessage("/activeuser");
+            messenger.readMessage();                    // Report
+            messenger.readMessage();                    // Menu
+            latencies[i] = System.nanoTime() - sent;
+        }
+        Arrays.sort(latencies);
+
+        out.println("mode:                 " + mode + " (Java " + Runtime.version().feature() + ")");
+        out.println("idle sessions:        " + sessions + " connected in " + String.format("%.1f", connectSeconds) + " s");
+        out.println("live threads:         " + threadsBefore + " -> " + threadsAfter);
+        out.println("heap per session:     " + (heapAfter - heapBefore) / Math.max(1, sessions) + " bytes");
+        if (rssBefore > 0) {
+            out.println("RSS per session:      " + (rssAfter - rssBefore) / Math.max(1, sessions) + " bytes (includes the client sockets)");
+        }
+        out.println("/activeuser commands: " + commands + " by " + active.size() + " users");
+        out.println("latency p50:          " + latencies[commands / 2] / 1000 + " us");
+        out.println("latency p99:          " + latencies[(int) (commands * 0.99)] / 1000 + " us");
+        out.println("latency max:          " + latencies[commands - 1] / 1000 + " us");
+
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,124 @@
+package messenger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Throughput of the presence registry with many active users.
+ * Prefills UserLog with the given number of active users, then runs each workload:
+ *  - isActive / getUserUDP: lookup of an active user (UserLog.findUser)
+ *  - login: appendUser + logoutUser of a fresh user
+ *  - creategroup: register a group of 10 active members (checks every member)
+ * The registry is kept in memory to measure the data structure only,
+ * unless journal is true to include the userlog journal. Run with -t for concurrent threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserLogBenchmark {
+    private static final AtomicInteger threads = new AtomicInteger();
+    @Param({"100", "10000", "100000"})
+    int active;
+    @Param({"false", "true"})
+    boolean journal;
+    private UserLog userLog;
+    private Messenger messenger;
+    private String[] names;
+
+    /*
+     * The position of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        final int thread = threads.incrementAndGet();
+        int next = 0;
+        GroupLog groupLog;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            // In memory only, and must not grow through the whole run
+            groupLog = new GroupLog(null);
+        }
+    }
+
+
+    @Setup
+    public void setUp() throws IOException {
+        String logPath = null;
+        if (journal) {
+            Path directory = Files.createTempDirectory("userlog");
+            directory.toFile().deleteOnExit();
+            for (String name : new String[] {"userlog.txt", "userlog.journal"}) {
+                directory.resolve(name).toFile().deleteOnExit();
+            }
+            logPath = directory.resolve("userlog.txt").toString();
+        }
+        userLog = new UserLog(logPath);
+        messenger = new Messenger();
+        names = new String[active];
+        for (int i = 0; i < active; i++) {
+            names[i] = "user" + i;
+            userLog.appendUser(new UserRecord(names[i], "(127.0.0.1, " + i + ")", 6000), messenger);
+        }
+    }
+
+
+    /**
+     * Get a spread out active user for the thread
+     * @param cursor Cursor
+     * @return String username
+     */
+    private String nextUser(Cursor cursor) {
+        return names[(int) ((cursor.next++ * 7919L + cursor.thread) % active)];
+    }
+
+
+    @Benchmark
+    public boolean isActive(Cursor cursor) {
+        return userLog.isActive(nextUser(cursor));
+    }
+
+
+    @Benchmark
+    public Integer getUserUDP(Cursor cursor) {
+        return userLog.getUserUDP(nextUser(cursor));
+    }
+
+
+    @Benchmark
+    public void login(Cursor cursor) {
+        String name = "new" + cursor.thread + "_" + cursor.next++;
+        userLog.appendUser(new UserRecord(name, "(127.0.0.1, 1)", 6000), messenger);
+        userLog.logoutUser(name);
+    }
+
+
+    @Benchmark
+    public Group creategroup(Cursor cursor) {
+        int i = cursor.next++;
+        StringBuilder command = new StringBuilder("/creategroup g").append(cursor.thread).append('x').append(i);
+        for (int m = 1; m < 10; m++) {
+            command.append(' ').append(names[(int) ((i * 31L + m) % active)]);
+        }
+        Group group = new Group(new Command(command.toString()), names[i % active]);
+        return cursor.groupLog.registerGroup(group, userLog);
+    }
+}
@@ -1,3 +1,5 @@
+package messenger;
+
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
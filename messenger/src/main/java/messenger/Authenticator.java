@@ -0,0 +1,304 @@
+package messenger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/*
+ *  Helps to Authenticate the user.
+ *  credentials.txt is loaded once into an index shared by all Authenticators.
+ *  A watcher thread reloads it when the file changes and swaps the new index in atomically.
+ *  It waits until the file has not changed for messenger.credentials.debounce milliseconds (default 500),
+ *  and keeps the previous index when the file can't be read, has a malformed line or no user.
+ *  A password is either stored in plain text or as a salted hash:
+ *    name $pbkdf2-sha256$iterations$salt$hash    (see: java Authenticator hash PASSWORD)
+ *  An unknown user or a plain text password is also checked against the hash of a random password,
+ *  so a login costs the same whether the user exists or not.
+ */
+public class Authenticator {
+    private static final String data = Settings.getString("messenger.credentials", "credentials.txt");
+    private static final String HASH_PREFIX = "$pbkdf2-sha256$";
+    private static final int HASH_ITERATIONS = Settings.getInt("messenger.credentials.iterations", 100000);
+    private static final long DEBOUNCE = Math.max(10, Settings.getLong("messenger.credentials.debounce", 500));
+    private static final ExecutorService hashers = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "authenticator");
+            t.setDaemon(true);
+            return t;
+        });
+    private static volatile Map<String, String> credentials = initialLoad();
+    private static volatile String dummy = null;
+
+    static {
+        Thread watcher = new Thread(Authenticator::watch, "credentials-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+
+    /**
+     * Try to verify the user in credentials.txt
+     * @param userName String the username to be verified
+     * @param userPassword String the password to be verified
+     * @return boolean
+     */
+    public boolean login(String userName, String userPassword) {
+        String stored = credentials.get(userName);
+        try {
+            if (stored == null || !stored.startsWith(HASH_PREFIX)) {
+                // Costs one hash like a stored hash, so the time does not tell which users exist
+                matches(userPassword, dummy());
+                return stored != null && matches(userPassword, stored);
+            }
+            return matches(userPassword, stored);
+        } catch (Exception e) {
+            ConsoleLog.error("Can't verify the password of " + userName, e);
+        }
+        return false;
+    }
+
+
+    /**
+     * Get the stored hash of a random password, verified for the unknown users and the plain text passwords
+     * @return String $pbkdf2-sha256$iterations$salt$hash
+     * @throws GeneralSecurityException
+     */
+    private static String dummy() throws GeneralSecurityException {
+        // Racing threads hash it twice at worst
+        if (dummy == null) {
+            dummy = hash(Long.toString(new SecureRandom().nextLong()));
+        }
+        return dummy;
+    }
+
+
+    /**
+     * Verify the user on the authenticator threads, so the hash cost stays off the caller (e.g. a reactor)
+     * @param userName String the username to be verified
+     * @param userPassword String the password to be verified
+     * @return CompletableFuture<Boolean>
+     */
+    public CompletableFuture<Boolean> loginAsync(String userName, String userPassword) {
+        return CompletableFuture.supplyAsync(() -> login(userName, userPassword), hashers);
+    }
+
+
+    /**
+     * Test if a user is in credentials.txt
+     * @param userName String
+     * @return boolean
+     */
+    public boolean hasUser(String userName) {
+        return credentials.containsKey(userName);
+    }
+
+
+    /**
+     * Compare a password with the stored plain text or salted hash
+     * @param password String the given password
+     * @param stored String the stored password
+     * @return boolean
+     * @throws GeneralSecurityException
+     */
+    private static boolean matches(String password, String stored) throws GeneralSecurityException {
+        if (!stored.startsWith(HASH_PREFIX)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.substring(HASH_PREFIX.length()).split("\\$");
+        int iterations = Integer.parseInt(parts[0]);
+        byte[] salt = Base64.getDecoder().decode(parts[1]);
+        byte[] hash = Base64.getDecoder().decode(parts[2]);
+        return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations, hash.length * 8));
+    }
+
+
+    /**
+     * Hash a password with PBKDF2-HMAC-SHA256
+     * @param password String
+     * @param salt byte[]
+     * @param iterations int
+     * @param bits int length of the hash
+     * @return byte[] hash
+     * @throws GeneralSecurityException
+     */
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int bits) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+        return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+    }
+
+
+    /**
+     * Create the stored form of a password with a random salt
+     * @param password String
+     * @return String $pbkdf2-sha256$iterations$salt$hash
+     * @throws GeneralSecurityException
+     */
+    public static String hash(String password) throws GeneralSecurityException {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, HASH_ITERATIONS, 256);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return HASH_PREFIX + HASH_ITERATIONS + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+    }
+
+
+    /**
+     * Read credentials.txt at startup, malformed lines are skipped
+     * @return Map<String, String> username to stored password (empty if unreadable)
+     */
+    private static Map<String, String> initialLoad() {
+        try {
+            return load(false);
+        } catch (IOException e) {
+            ConsoleLog.warn("No users, can't load " + data + ": " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+
+    /**
+     * Read credentials.txt into a new index
+     * @param strict boolean whether a malformed line fails the whole file, e.g. one cut short while written
+     * @return Map<String, String> username to stored password
+     * @throws IOException if the file can't be read, or a line is malformed when strict
+     */
+    private static Map<String, String> load(boolean strict) throws IOException {
+        Map<String, String> index = new HashMap<>();
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(data))) {
+            String line;
+            int number = 0;
+            while ((line = br.readLine()) != null) {
+                number++;
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length >= 2 && isStored(parts[1])) {
+                    index.put(parts[0], parts[1]);
+                } else if (strict && !line.trim().isEmpty()) {
+                    throw new IOException("line " + number + " is not a user and a password");
+                }
+            }
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+
+    /**
+     * Test if a stored password is plain text or a complete salted hash
+     * @param stored String
+     * @return boolean
+     */
+    private static boolean isStored(String stored) {
+        if (!stored.startsWith(HASH_PREFIX)) {
+            return true;
+        }
+        String[] parts = stored.substring(HASH_PREFIX.length()).split("\\$");
+        try {
+            return parts.length == 3 && Integer.parseInt(parts[0]) > 0
+                && Base64.getDecoder().decode(parts[1]).length > 0 && Base64.getDecoder().decode(parts[2]).length > 0;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Reload credentials.txt whenever it changes, runs on the watcher thread
+     */
+    private static void watch() {
+        Path file = Paths.get(data).toAbsolutePath();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                // An editor writes a file in several steps, wait until the events stop
+                while (key != null) {
+                    changed |= isChanged(key, file);
+                    if (!key.reset()) {
+                        return;
+                    }
+                    key = watchService.poll(DEBOUNCE, TimeUnit.MILLISECONDS);
+                }
+                if (changed && Files.exists(file)) {
+                    reload(file);
+                }
+            }
+        } catch (IOException e) {
+            ConsoleLog.error("Can't watch " + data + ", changes are not reloaded", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Test if the events of a watch key are about the credentials file
+     * @param key WatchKey
+     * @param file Path
+     * @return boolean
+     */
+    private static boolean isChanged(WatchKey key, Path file) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+
+    /**
+     * Swap in a new index if the file reads as a whole and did not change while read,
+     * otherwise keep the previous one
+     * @param file Path
+     */
+    private static void reload(Path file) {
+        try {
+            BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+            Map<String, String> index = load(true);
+            BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+            if (before.size() != after.size() || !before.lastModifiedTime().equals(after.lastModifiedTime())) {
+                // Still being written, the next event reloads it
+                return;
+            }
+            if (index.isEmpty()) {
+                throw new IOException("no user");
+            }
+            credentials = index;
+            ConsoleLog.info("Reloaded " + data + ", " + index.size() + " users");
+        } catch (IOException e) {
+            ConsoleLog.warn("Kept the previous credentials, can't load " + data + ": " + e.getMessage());
+        }
+    }
+
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        if (args.length != 2 || !args[0].equals("hash")) {
+            System.out.println("===== Error usage: java Authenticator hash PASSWORD =====");
+            return;
+        }
+        System.out.println(hash(args[1]));
+    }
+}
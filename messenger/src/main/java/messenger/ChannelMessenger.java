@@ -0,0 +1,236 @@
+package messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Contact backed by a non-blocking SocketChannel owned by a Reactor.
+ * Messages are encoded in the same formats as Messenger, so the Client can not tell the difference.
+ * The reads are decoded by the NioSession as they arrive, so there is no readMessage as in Messenger.
+ * Any thread may send, the queued messages are written by the reactor thread.
+ * Senders never wait: with the BLOCK overflow policy a full queue drops the new message.
+ * The reactor takes the messages out of the queue before writing them, a message partly written
+ * stays in the reactor's gather array where the DROP_OLDEST policy of the senders can't evict it.
+ */
+public class ChannelMessenger implements Contact {
+    private static final int MAX_GATHER = 64;      // Max messages in one gathering write
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private final OutboundQueue<ByteBuffer> outbound = OutboundQueue.fromSettings();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];  // Reactor only, taken from the queue
+    private int gatherStart = 0;                                      // Reactor only, first buffer not written
+    private int gatherEnd = 0;                                        // Reactor only
+    private SelectionKey key;
+    private volatile boolean framed = false;
+    private volatile boolean closing = false;
+
+
+    /**
+     * ChannelMessenger constructor
+     * @param channel SocketChannel non-blocking channel
+     * @param reactor Reactor the reactor owning the channel
+     */
+    ChannelMessenger(SocketChannel channel, Reactor reactor) {
+        this.channel = channel;
+        this.reactor = reactor;
+    }
+
+
+    /**
+     * Set the selection key of the channel
+     * @param key SelectionKey
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+
+    /**
+     * Stop or resume reading the channel, runs on the reactor thread
+     * @param reading boolean
+     */
+    void setReading(boolean reading) {
+        if (key != null && key.isValid() && ((key.interestOps() & SelectionKey.OP_READ) != 0) != reading) {
+            key.interestOps(reading ? key.interestOps() | SelectionKey.OP_READ : key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+
+    /**
+     * Queue a message and let the reactor write it
+     * @param message String message
+     * @throws IOException if the channel is closed
+     */
+    @Override
+    public void sendMessage(String message) throws IOException {
+        send(message, null);
+    }
+
+
+    /**
+     * Queue a message and let the reactor write it, the same as sendMessage: a channel never waits for space
+     * @param message String message
+     * @throws IOException if the channel is closed
+     */
+    @Override
+    public void offerMessage(String message) throws IOException {
+        send(message, null);
+    }
+
+
+    /**
+     * Queue a message and learn when the reactor has written it to the channel
+     * @param message String message
+     * @return CompletableFuture<Void> failed if the message is dropped or the connection closes first
+     * @throws IOException if the channel is closed
+     */
+    @Override
+    public CompletableFuture<Void> sendConfirmed(String message) throws IOException {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        send(message, written);
+        return written;
+    }
+
+
+    /**
+     * Queue a message and let the reactor write it
+     * @param message String message
+     * @param confirmation CompletableFuture<Void> completed once written, null if not needed
+     * @throws IOException if the channel is closed
+     */
+    private void send(String message, CompletableFuture<Void> confirmation) throws IOException {
+        if (closing || !channel.isOpen()) {
+            throw new IOException("Connection closed");
+        }
+        ByteBuffer encoded = ByteBuffer.wrap(framed ? FrameCodec.encodeFrame(message) : FrameCodec.encodeLegacy(message));
+        boolean queued = confirmation == null ? outbound.offer(encoded, false) : outbound.offer(encoded, false, confirmation);
+        if (!queued) {
+            ConsoleLog.warn("===== Disconnect slow reader " + channel.socket().getRemoteSocketAddress());
+            reactor.execute(() -> reactor.closeConnection(key));
+            return;
+        }
+        if (confirmation != null && !channel.isOpen()) {
+            // Closed meanwhile, the clear may have run before the offer
+            outbound.clear();
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute(this::writeQueued);
+        }
+    }
+
+
+    /**
+     * The client asked for frames, confirm in the legacy format and switch
+     * @throws IOException
+     */
+    void acceptFraming() throws IOException {
+        sendMessage(FrameCodec.HELLO_ACK);
+        framed = true;
+    }
+
+
+    /**
+     * Get the number of messages waiting to be written
+     * @return int
+     */
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+
+    /**
+     * Get the number of messages dropped because the queue was full
+     * @return long
+     */
+    @Override
+    public long getDropped() {
+        return outbound.getDropped();
+    }
+
+
+    /**
+     * Test if the connection is closed
+     * @return boolean
+     */
+    @Override
+    public boolean isDisconnected() {
+        return !channel.isOpen();
+    }
+
+
+    /**
+     * Close the channel immediately, queued messages are dropped
+     */
+    void close() {
+        closing = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ConsoleLog.error("===== Can't close " + channel.socket().getRemoteSocketAddress(), e);
+        }
+        outbound.clear();
+    }
+
+
+    /**
+     * Close the channel once every queued message has been written
+     */
+    void closeWhenFlushed() {
+        closing = true;
+        reactor.execute(this::writeQueued);
+    }
+
+
+    /**
+     * Write as many queued messages as the channel accepts in one gathering write.
+     * Asks for OP_WRITE when the socket buffer is full. Runs on the reactor thread.
+     */
+    void writeQueued() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (gatherStart == gatherEnd) {
+                    // Everything taken was written, take the next messages
+                    gatherStart = 0;
+                    gatherEnd = 0;
+                    ByteBuffer buffer;
+                    while (gatherEnd < MAX_GATHER && (buffer = outbound.poll()) != null) {
+                        gather[gatherEnd++] = buffer;
+                    }
+                    if (gatherEnd == 0) {
+                        break;
+                    }
+                }
+                Metrics.addOutboundBytes(channel.write(gather, gatherStart, gatherEnd - gatherStart));
+                while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                    outbound.written(gather[gatherStart]);
+                    gather[gatherStart++] = null;
+                }
+                if (gatherStart < gatherEnd) {
+                    // Socket buffer is full, wait until writable
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing) {
+                close();
+            }
+        } catch (IOException e) {
+            reactor.closeConnection(key);
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package messenger;
+
+import java.net.*;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+
+/*
+ * The Client
+ */
+public class Client {
+    private static String serverHost;
+    private static Integer serverPort;
+    private static Integer clientUDPport;
+    private static final MessageHistory history = new MessageHistory();    // Bounded, see messenger.history.size
+    private static String clientName;
+    private static final String MENU = "/msgto /activeuser /creategroup /joingroup /groupmsg /logout /p2pvideo\nPlease enter your command:";
+    private static final long LOOKUP_TIMEOUT = 5;   // Seconds to wait for the server to answer a lookup
+    private static final PeerCache peers = new PeerCache();
+    private static volatile boolean skipMenu = false;  // The prompt after a lookup or an offer, printed after the transfer
+
+
+    /**
+     * Get the past messages received from Server (grows downwards)
+     * @param i Integer an index relative to the last message
+     * @return String message (null if no longer kept in memory)
+     */
+    public static String getLastMsg(Integer i) {
+        return history.get(i);
+    }
+
+
+    /**
+     * Append to the message history
+     * @param lastMsg String
+     */
+    public static void addLastMsg(String lastMsg) {
+        history.add(lastMsg);
+    }
+
+
+    /**
+     * Get the client name
+     * @return String client name
+     */
+    public static String getClientName() {
+        return clientName;
+    }
+
+
+    /**
+     * Set the client name
+     * @param name String
+     */
+    public static void setClientName(String name) {
+        Client.clientName = name;
+    }
+
+
+    /**
+     * Get the UDP port number and address of the target user.
+     * From the cache, else asks the server with one /lookup
+     * @param name String target user name
+     * @param messenger Messenger connected to the server
+     * @return Audience contains the port and address (null if the user is not active)
+     * @throws IOException when the server does not answer
+     */
+    private static Audience getUDP(String name, Messenger messenger) throws IOException {
+        Audience audience = peers.get(name);
+        if (audience != null) {
+            return audience;
+        }
+        try {
+            return peers.lookup(name, messenger, LOOKUP_TIMEOUT, TimeUnit.SECONDS).get();
+        } catch (ExecutionException e) {
+            throw new IOException("the server did not answer the lookup of " + name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+
+    /**
+     * Announce a transfer to the target user through the server, it ignores the transfers it was not told about
+     * @param name String target user name
+     * @param transfer int transfer ID
+     * @param size long the size of the file
+     * @param messenger Messenger connected to the server
+     * @throws IOException when the user is not active or the server does not answer
+     */
+    private static void announce(String name, int transfer, long size, Messenger messenger) throws IOException {
+        try {
+            if (!peers.announce(name, transfer, size, messenger, LOOKUP_TIMEOUT, TimeUnit.SECONDS).get()) {
+                throw new IOException(name + " is not active");
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("the server did not answer the offer to " + name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 && !(args.length == 4 && args[3].equals("legacy"))) {
+            System.out.println("===== Error usage: java Client SERVER_IP SERVER_PORT UDP_PORT [legacy] =====");
+            return;
+        }
+
+        serverHost = args[0];
+        serverPort = Integer.parseInt(args[1]);
+        clientUDPport = Integer.parseInt(args[2]);
+
+        // define socket for client
+        Socket clientSocket = new Socket(serverHost, serverPort);   // TCP
+        DatagramChannel udpChannel = DatagramChannel.open().bind(new InetSocketAddress(clientUDPport));   // UDP
+        Messenger messenger = new Messenger(clientSocket);
+        if (args.length == 3) {
+            // Frames lift the 64 KB limit, "legacy" keeps writeUTF for old servers
+            messenger.requestFraming();
+        }
+
+        // UDP endpoint, receives the files of the other users on its own thread
+        P2pEndpoint p2p = new P2pEndpoint(udpChannel, summary -> {
+            System.out.println(summary);
+            System.out.println(MENU);
+        });
+
+        // TCP server Listener Thread
+        Thread receiveThread = new Thread(() -> {
+            try {
+                while (true) {
+                    String msg = messenger.readMessage();
+                    if (peers.onMessage(msg)) {
+                        skipMenu = msg.startsWith(PeerCache.PEER + " ") || msg.startsWith(PeerCache.OFFERED + " ");
+                        continue;
+                    }
+                    if (p2p.onMessage(msg)) {
+                        continue;
+                    }
+                    if (skipMenu && msg.equals(MENU)) {
+                        skipMenu = false;
+                        continue;
+                    }
+                    if (msg.split(" ")[0].equals("Welcome")) {
+                        setClientName(msg.split(" ")[1]);
+                    }
+                    switch (msg) {
+                        case "LOGIN_SUCCEEDED":
+                            // Tell the server the client's upd port number
+                            messenger.sendMessage(clientUDPport.toString());
+                            break;
+                        case "LOGOUT":
+                            // Close the client application
+                            System.out.println("Connection closed");
+                            clientSocket.close();
+                            messenger.close();
+                            history.close();
+                            System.exit(0);
+                            break;
+                        default:
+                            System.out.println(msg);
+                            break;
+                    }
+                    addLastMsg(msg);    // appende past message
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        receiveThread.start();
+
+        // define a BufferedReader to get input from command line i.e., standard input from keyboard
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        while (true) {
+            try {                    
+                // read input from command line
+                String message = reader.readLine();
+                Command cmd = new Command(message);
+                if (cmd.getAction().equals("/p2pvideo")) {
+                    // Only the lookup and the offer go to the server, the file goes straight to the user
+                    if (cmd.getArgSize() != 2) {
+                        System.out.println("Error:/p2pvideo: check arguments");
+                    } else {
+                        String name = cmd.getArg(0);
+                        try {
+                            Audience audience = getUDP(name, messenger);
+                            if (audience == null) {
+                                System.out.println(name + " is not active");
+                            } else {
+                                System.out.println(p2p.sendFile(cmd.getArg(1), audience, getClientName(),
+                                    (transfer, size) -> announce(name, transfer, size, messenger)));
+                            }
+                        } catch (IOException e) {
+                            // The user may have moved, ask the server again next time
+                            peers.invalidate(name);
+                            System.out.println("Error:/p2pvideo: " + e.getMessage());
+                        }
+                    }
+                    System.out.println(MENU);
+                    continue;
+                }
+                // write message into dataOutputStream and send/flush to the server
+                messenger.sendMessage(cmd.toString());
+            } catch (EOFException e) {
+                System.out.println("Connection closed");
+                clientSocket.close();
+                messenger.close();
+                history.close();
+                break;
+            } 
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+package messenger;
+
+import java.util.Arrays;
+
+/*
+ * Help to process the user's input.
+ * The input is tokenized on spaces once, only the offsets of the words are recorded.
+ * A word is cut from the input when asked for, the rest of the line is one slice
+ * so a message body keeps the user's whitespace.
+ */
+public class Command {
+    private String action;
+    private String fullMessage;
+    private int[] starts = new int[8];     // Offset of each word, starts[0] is the action
+    private int[] ends = new int[8];       // Offset after each word
+    private int size = 0;                  // Number of words including the action
+
+
+    /**
+     * Command object constructor
+     * @param cmd String the user's input
+     */
+    public Command(String cmd) {
+        this.fullMessage = cmd;
+        int length = cmd.length();
+        int i = 0;
+        while (i < length) {
+            // Skip the spaces between words
+            while (i < length && cmd.charAt(i) == ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            int start = i;
+            while (i < length && cmd.charAt(i) != ' ') {
+                i++;
+            }
+            addWord(start, i);
+        }
+        this.action = size == 0 ? "" : cmd.substring(starts[0], ends[0]);
+    }
+
+
+    /**
+     * Record the offsets of a word
+     * @param start int offset of the first character
+     * @param end int offset after the last character
+     */
+    private void addWord(int start, int end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+
+    /**
+     * Returns the user action (e.g.: /logout, /msgto, /creategroup ... etc)
+     * @return String action
+     */
+    public String getAction() {
+        return action;
+    }
+
+
+    /**
+     * Get the arguments after the action.
+     * The action itself is not counted as arguments.
+     * @param i Integer the index of the targeting argument
+     * @return String argument
+     */
+    public String getArg(Integer i) {
+        checkIndex(i);
+        return fullMessage.substring(starts[i + 1], ends[i + 1]);
+    }
+
+
+    /**
+     * Get the rest of the line from an argument to the last argument, as the user typed it
+     * @param i Integer the index of the first argument
+     * @return String e.g. the message body of /msgto
+     */
+    public String getRest(Integer i) {
+        checkIndex(i);
+        return fullMessage.substring(starts[i + 1], ends[size - 1]);
+    }
+
+
+    /**
+     * Get the number of arguments in total
+     * @return Integer number of arguments
+     */
+    public Integer getArgSize() {
+        return size == 0 ? 0 : size - 1;
+    }
+
+
+    /**
+     * Check an argument index
+     * @param i int the index of an argument
+     */
+    private void checkIndex(int i) {
+        if (i < 0 || i >= getArgSize()) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + getArgSize());
+        }
+    }
+
+
+    /*
+    * Convert a message to String.
+    */
+    @Override
+    public String toString() {
+        return fullMessage;
+    }
+}
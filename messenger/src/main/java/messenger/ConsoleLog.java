@@ -0,0 +1,240 @@
+package messenger;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Asynchronous server console output.
+ * Producers put preformatted lines into a bounded lock free ring buffer (Vyukov's array queue),
+ * one console thread takes every queued line and prints them with a single write.
+ * Lines below messenger.console.level (debug, info, warn, error; default info) are skipped,
+ * when the buffer is full messenger.console.overflow says what to do:
+ *  - DROP (default): drop the line and count it, the console thread reports the count
+ *  - BLOCK: wait until the console thread has made room
+ */
+public class ConsoleLog {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+    public enum Overflow { DROP, BLOCK }
+
+    private static final int MAX_BATCH = 1024;
+    private static final Level level = Settings.getEnum("messenger.console.level", Level.INFO);
+    private static final Overflow overflow = Settings.getEnum("messenger.console.overflow", Overflow.DROP);
+    private static final int capacity = Integer.highestOneBit(Math.max(2, Settings.getInt("messenger.console.capacity", 8192)));
+    private static final int mask = capacity - 1;
+    private static final String[] lines = new String[capacity];
+    private static final AtomicLongArray sequences = new AtomicLongArray(capacity);  // Which lap a slot is ready for
+    private static final AtomicLong tail = new AtomicLong();                          // Next slot of the producers
+    private static long head = 0;                                                     // Console thread only
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile boolean sleeping = false;
+    private static final Thread thread;
+
+    static {
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        thread = new Thread(ConsoleLog::run, "console-log");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ConsoleLog::shutdown, "console-log-shutdown"));
+    }
+
+
+    /**
+     * Test if lines of a level are printed
+     * @param lineLevel Level
+     * @return boolean
+     */
+    public static boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) >= 0;
+    }
+
+
+    /**
+     * Print a debug line
+     * @param line String
+     */
+    public static void debug(String line) {
+        log(Level.DEBUG, line);
+    }
+
+
+    /**
+     * Print an info line
+     * @param line String
+     */
+    public static void info(String line) {
+        log(Level.INFO, line);
+    }
+
+
+    /**
+     * Print a warning line
+     * @param line String
+     */
+    public static void warn(String line) {
+        log(Level.WARN, line);
+    }
+
+
+    /**
+     * Print an error line with the stack trace
+     * @param line String
+     * @param error Throwable
+     */
+    public static void error(String line, Throwable error) {
+        if (!isEnabled(Level.ERROR)) {
+            return;
+        }
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        log(Level.ERROR, line + System.lineSeparator() + trace.toString().trim());
+    }
+
+
+    /**
+     * Get the number of lines dropped because the buffer was full
+     * @return long
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+
+    /**
+     * Queue a line for the console thread
+     * @param lineLevel Level
+     * @param line String
+     */
+    private static void log(Level lineLevel, String line) {
+        if (!isEnabled(lineLevel)) {
+            return;
+        }
+        while (!offer(line)) {
+            if (overflow == Overflow.DROP) {
+                dropped.increment();
+                return;
+            }
+            wakeUp();
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+        if (sleeping) {
+            wakeUp();
+        }
+    }
+
+
+    /**
+     * Put a line in the next free slot
+     * @param line String
+     * @return boolean false if the buffer is full
+     */
+    private static boolean offer(String line) {
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) (position & mask);
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                // The slot still holds a line of the previous lap
+                return false;
+            }
+            // Another producer took the slot, try the next one
+        }
+        lines[slot] = line;
+        sequences.set(slot, position + 1);    // Publishes the line
+        return true;
+    }
+
+
+    /**
+     * Take the oldest line, console thread only
+     * @return String the line, null if empty
+     */
+    private static String poll() {
+        int slot = (int) (head & mask);
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+        String line = lines[slot];
+        lines[slot] = null;
+        sequences.set(slot, head + capacity);   // Free for the next lap
+        head++;
+        return line;
+    }
+
+
+    /**
+     * Wake the console thread if it is waiting for lines
+     */
+    private static void wakeUp() {
+        LockSupport.unpark(thread);
+    }
+
+
+    /**
+     * Print the queued lines in batches, runs on the console thread
+     */
+    private static void run() {
+        StringBuilder batch = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            if (!drain(batch)) {
+                sleeping = true;
+                // A line queued before the flag was set did not wake us up
+                if (sequences.get((int) (head & mask)) != head + 1) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                sleeping = false;
+            }
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                System.out.println("===== " + (drops - reportedDrops) + " console lines dropped");
+                reportedDrops = drops;
+            }
+        }
+    }
+
+
+    /**
+     * Print up to MAX_BATCH queued lines with one write
+     * @param batch StringBuilder reused buffer
+     * @return boolean false if nothing was queued
+     */
+    private static synchronized boolean drain(StringBuilder batch) {
+        String line;
+        int count = 0;
+        while (count < MAX_BATCH && (line = poll()) != null) {
+            batch.append(line).append(System.lineSeparator());
+            count++;
+        }
+        if (count == 0) {
+            return false;
+        }
+        System.out.print(batch);
+        System.out.flush();
+        batch.setLength(0);
+        return true;
+    }
+
+
+    /**
+     * Print every line still queued, used on JVM shutdown
+     */
+    private static void shutdown() {
+        StringBuilder batch = new StringBuilder();
+        while (drain(batch)) {
+            // Until empty
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package messenger;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * The sending side of a client connection, what the server needs to reach a logged in user.
+ * Implemented by the blocking Messenger and by the NIO ChannelMessenger, which can't read on demand.
+ * Any thread may send, the messages are queued in an OutboundQueue and written by the connection's writer.
+ */
+public interface Contact {
+    /**
+     * Queue a message to the user
+     * @param message String
+     * @throws IOException if the connection is closed
+     */
+    void sendMessage(String message) throws IOException;
+
+
+    /**
+     * Queue a message without waiting for space, when the queue is full the overflow policy applies
+     * at once: BLOCK drops the message instead of waiting. Used by senders that serve many users.
+     * @param message String
+     * @throws IOException if the connection is closed
+     */
+    void offerMessage(String message) throws IOException;
+
+
+    /**
+     * Queue a message to the user and learn whether it reached the connection, never waits for room
+     * @param message String
+     * @return CompletableFuture<Void> completed once written, failed if the message was dropped
+     *         by the overflow policy or the connection closed first
+     * @throws IOException if the connection is closed
+     */
+    CompletableFuture<Void> sendConfirmed(String message) throws IOException;
+
+
+    /**
+     * Get the number of messages waiting to be written
+     * @return int
+     */
+    int getQueueDepth();
+
+
+    /**
+     * Get the number of messages dropped because the queue was full
+     * @return long
+     */
+    long getDropped();
+
+
+    /**
+     * Test if the connection was closed
+     * @return boolean
+     */
+    boolean isDisconnected();
+}
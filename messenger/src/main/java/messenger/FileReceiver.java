@@ -0,0 +1,443 @@
+package messenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/*
+ * Receives a file sent by a FileSender (/p2pvideo).
+ * The chunks may arrive in any order, each one is checked against its CRC32C, copied to its place
+ * in the memory mapped NAME.part file and answered with an ACK carrying the next missing chunk and
+ * the chunks after it that arrived.
+ * The bitmap of the chunks that arrived is the memory mapped NAME.map file next to it, so when the
+ * transfer is interrupted and sent again (same size, chunk size and modification time) only the
+ * missing chunks are asked for.
+ * A digester thread hashes the file as it arrives in order, at FIN the SHA-256 is compared to the
+ * sender's: the NAME.part file becomes NAME, or both files are deleted if it does not match.
+ * Used by the UDP receive thread only, nothing is allocated per chunk.
+ * The endpoint sets how many chunks the sender may have in flight, its share of the memory.
+ */
+public class FileReceiver {
+    private static final int MAP_MAGIC = 0x50325031;
+    private static final int MAP_HEADER = 24;       // Magic, chunk size, file size, modification time
+    private static final int HASH_STEP = 1024 * 1024;
+    private static final long HASH_POLL = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final SocketAddress peer;
+    private final int transfer;
+    private final String username;
+    private final String filename;
+    private final long size;
+    private final int chunkSize;
+    private final long modified;
+    private final int chunks;
+    private final int words;
+    private final long regionSize;              // Whole chunks, so no chunk spans two regions
+    private final long[] sack = new long[P2pPacket.MAX_SACK_WORDS];
+    private final CRC32C crc = new CRC32C();
+    private final long begin = System.nanoTime();
+    private Path part;
+    private Path map;
+    private FileChannel output;
+    private FileChannel mapOutput;
+    private MappedByteBuffer[] regions;         // A mapping holds at most 2 GB
+    private LongBuffer received;                // Bitmap of the chunks, in the map file
+    private int next = 0;                       // All chunks before it arrived
+    private volatile int contiguous = 0;        // next, for the digester
+    private int highest = -1;
+    private int kept = 0;                       // Chunks of an interrupted transfer
+    private int duplicates = 0;
+    private int corrupted = 0;
+    private long lastPacket = begin;
+    private int window = 16;
+    private volatile boolean closed = false;
+    private volatile byte[] digest = null;
+    private boolean complete = false;
+    private byte status;
+    private String summary;
+
+
+    /**
+     * FileReceiver constructor, reads the START packet
+     * @param peer SocketAddress of the sender
+     * @param transfer int transfer ID
+     * @param start ByteBuffer the START packet positioned after the header
+     * @throws IOException when the packet is not valid
+     */
+    public FileReceiver(SocketAddress peer, int transfer, ByteBuffer start) throws IOException {
+        this.peer = peer;
+        this.transfer = transfer;
+        this.size = start.getLong();
+        this.chunkSize = start.getInt();
+        this.modified = start.getLong();
+        this.username = P2pPacket.getString(start);
+        // No directories from the peer
+        this.filename = new File(P2pPacket.getString(start)).getName();
+        if (size < 0 || chunkSize <= 0 || chunkSize > P2pPacket.MAX_CHUNK || (size + chunkSize - 1) / chunkSize > Integer.MAX_VALUE - 64) {
+            throw new IOException("bad START packet");
+        }
+        this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+        this.words = (chunks + 63) / 64;
+        this.regionSize = (Integer.MAX_VALUE / chunkSize) * (long) chunkSize;
+    }
+
+
+    /**
+     * Open the part and map files in the working directory, with the chunks kept from an
+     * interrupted transfer of the same file, and start hashing
+     * @throws IOException when the files can't be created
+     */
+    public void open() throws IOException {
+        part = Paths.get(filename + ".part");
+        map = Paths.get(filename + ".map");
+        boolean resume = canResume();
+        try {
+            output = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapOutput = FileChannel.open(map, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!resume) {
+                output.truncate(0);
+                mapOutput.truncate(0);
+            }
+            regions = new MappedByteBuffer[(int) ((size + regionSize - 1) / regionSize)];
+            for (int i = 0; i < regions.length; i++) {
+                long offset = i * regionSize;
+                regions[i] = output.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(regionSize, size - offset));
+            }
+            MappedByteBuffer header = mapOutput.map(FileChannel.MapMode.READ_WRITE, 0, MAP_HEADER + words * 8L);
+            if (!resume) {
+                header.putInt(0, MAP_MAGIC).putInt(4, chunkSize).putLong(8, size).putLong(16, modified);
+            }
+            received = header.position(MAP_HEADER).slice().asLongBuffer();
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        for (int i = 0; i < words; i++) {
+            kept += Long.bitCount(received.get(i));
+        }
+        advance();
+        P2pEndpoint.digesters.execute(this::hash);
+    }
+
+
+    /**
+     * Test if the part and map files hold an interrupted transfer of this file
+     * @return boolean
+     */
+    private boolean canResume() {
+        try (FileChannel channel = FileChannel.open(map, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(MAP_HEADER);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Until the header is read
+            }
+            return header.getInt(0) == MAP_MAGIC && header.getInt(4) == chunkSize && header.getLong(8) == size
+                && header.getLong(16) == modified && channel.size() == MAP_HEADER + words * 8L
+                && Files.size(part) == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Test if a packet belongs to this transfer
+     * @param from SocketAddress
+     * @param id int transfer ID of the packet
+     * @return boolean
+     */
+    public boolean isTransfer(SocketAddress from, int id) {
+        return transfer == id && peer.equals(from);
+    }
+
+
+    /**
+     * Get the name of the file
+     * @return String
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+
+    /**
+     * Get the name of the sender
+     * @return String
+     */
+    public String getUsername() {
+        return username;
+    }
+
+
+    /**
+     * Get the size of the file
+     * @return long bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+
+    /**
+     * Get the chunk size
+     * @return int bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+
+    /**
+     * Set how many chunks the sender may have in flight, sent with the next ack
+     * @param window int
+     */
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+
+    /**
+     * Test if the whole file arrived and was checked
+     * @return boolean
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+
+    /**
+     * Get the time the last packet arrived
+     * @return long System.nanoTime()
+     */
+    public long getLastPacket() {
+        return lastPacket;
+    }
+
+
+    /**
+     * Get the summary of the completed transfer
+     * @return String
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+
+    /**
+     * Test if a chunk arrived
+     * @param chunk int
+     * @return boolean
+     */
+    private boolean isReceived(int chunk) {
+        return (received.get(chunk >>> 6) & (1L << chunk)) != 0;
+    }
+
+
+    /**
+     * Move next past the chunks that arrived
+     */
+    private void advance() {
+        while (next < chunks && isReceived(next)) {
+            next++;
+        }
+        contiguous = next;
+    }
+
+
+    /**
+     * Answer a START: an ACK, or the HAVE packets of the kept chunks
+     * @param ack ByteBuffer reused buffer for an ACK
+     * @return List<ByteBuffer> the packets to send
+     */
+    public List<ByteBuffer> onStart(ByteBuffer ack) {
+        List<ByteBuffer> replies = new ArrayList<>();
+        if (kept == 0) {
+            replies.add(ack(ack));
+            return replies;
+        }
+        int total = 0;
+        long[] bitmap = new long[words];
+        for (int i = 0; i < words; i++) {
+            bitmap[i] = received.get(i);
+            total += Long.bitCount(bitmap[i]);
+        }
+        for (int first = 0; first < words; first += P2pPacket.MAX_HAVE_WORDS) {
+            int count = Math.min(P2pPacket.MAX_HAVE_WORDS, words - first);
+            boolean empty = true;
+            for (int i = first; i < first + count && empty; i++) {
+                empty = bitmap[i] == 0;
+            }
+            if (!empty) {
+                replies.add(P2pPacket.have(transfer, total, bitmap, first, count));
+            }
+        }
+        return replies;
+    }
+
+
+    /**
+     * Store a DATA packet if its CRC32C matches
+     * @param packet ByteBuffer positioned after the header, limited to the packet length
+     * @param ack ByteBuffer reused buffer for the answer
+     * @return ByteBuffer the ACK to send back
+     */
+    public ByteBuffer onData(ByteBuffer packet, ByteBuffer ack) {
+        lastPacket = System.nanoTime();
+        int chunk = packet.getInt();
+        int checksum = packet.getInt();
+        if (chunk >= 0 && chunk < chunks && !complete) {
+            if (isReceived(chunk)) {
+                duplicates++;
+            } else {
+                long offset = (long) chunk * chunkSize;
+                if (packet.remaining() != Math.min(chunkSize, size - offset)) {
+                    // Not a chunk of this file
+                    return ack(ack);
+                }
+                int start = packet.position();
+                crc.reset();
+                crc.update(packet);
+                if ((int) crc.getValue() != checksum) {
+                    // Damaged on the way, the sender will send it again
+                    corrupted++;
+                    return ack(ack);
+                }
+                packet.position(start);
+                MappedByteBuffer region = regions[(int) (offset / regionSize)];
+                region.position((int) (offset % regionSize));
+                region.put(packet);
+                received.put(chunk >>> 6, received.get(chunk >>> 6) | (1L << chunk));
+                highest = Math.max(highest, chunk);
+                advance();
+            }
+        }
+        return ack(ack);
+    }
+
+
+    /**
+     * Build the ACK of the chunks received so far
+     * @param ack ByteBuffer reused buffer
+     * @return ByteBuffer
+     */
+    public ByteBuffer ack(ByteBuffer ack) {
+        int count = highest <= next ? 0 : Math.min(P2pPacket.MAX_SACK_WORDS, ((highest - next - 1) >>> 6) + 1);
+        for (int w = 0; w < count; w++) {
+            // 64 bits of the bitmap from chunk next + 1 + 64w on
+            int from = next + 1 + w * 64;
+            int index = from >>> 6;
+            int shift = from & 63;
+            long bits = index < words ? received.get(index) >>> shift : 0;
+            if (shift != 0 && index + 1 < words) {
+                bits |= received.get(index + 1) << (64 - shift);
+            }
+            sack[w] = bits;
+        }
+        return P2pPacket.ack(ack, transfer, next, window, sack, count);
+    }
+
+
+    /**
+     * Hash the file as its contiguous part grows, runs on a digester thread
+     */
+    private void hash() {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            long hashed = 0;
+            while (!closed && hashed < size) {
+                long end = Math.min(size, (long) contiguous * chunkSize);
+                if (hashed == end) {
+                    LockSupport.parkNanos(HASH_POLL);
+                    continue;
+                }
+                int index = (int) (hashed / regionSize);
+                long regionStart = index * regionSize;
+                ByteBuffer view = regions[index].duplicate();
+                int from = (int) (hashed - regionStart);
+                int to = (int) Math.min(Math.min(end - regionStart, view.capacity()), from + (long) HASH_STEP);
+                view.limit(to).position(from);
+                sha.update(view);
+                hashed += to - from;
+            }
+            digest = sha.digest();
+        } catch (NoSuchAlgorithmException e) {
+            digest = new byte[0];
+        }
+    }
+
+
+    /**
+     * Handle the FIN of the sender: once every chunk arrived and is hashed, compare the SHA-256
+     * and keep the file or delete it
+     * @param packet ByteBuffer positioned after the header
+     * @param ack ByteBuffer reused buffer for the answer
+     * @return ByteBuffer the FIN_ACK, an ACK while the file is hashed, null if chunks are missing
+     * @throws IOException when the file can't be renamed or deleted
+     */
+    public ByteBuffer onFin(ByteBuffer packet, ByteBuffer ack) throws IOException {
+        lastPacket = System.nanoTime();
+        if (complete) {
+            return P2pPacket.finAck(transfer, status);
+        }
+        if (next < chunks) {
+            return null;
+        }
+        if (digest == null) {
+            // Still hashing, the ack tells the sender to wait
+            return ack(ack);
+        }
+        int retransmits = packet.getInt();
+        byte[] expected = new byte[P2pPacket.DIGEST_SIZE];
+        packet.get(expected);
+        complete = true;
+        abort();
+        double seconds = (lastPacket - begin) / 1e9;
+        if (MessageDigest.isEqual(expected, digest)) {
+            status = P2pPacket.VERIFIED;
+            Files.move(part, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(map);
+            String resumed = kept == 0 ? "" : String.format(", resumed with %d chunks kept", kept);
+            summary = String.format("Received file '%s' from: %s (%.2f MB/s, %d chunks retransmitted, %d duplicates, %d corrupted%s), SHA-256 verified",
+                filename, username, Math.max(0, size - (long) kept * chunkSize) / seconds / 1e6, retransmits, duplicates, corrupted, resumed);
+        } else {
+            status = P2pPacket.CORRUPT;
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(map);
+            summary = String.format("Received file '%s' from: %s does not match its SHA-256, deleted", filename, username);
+        }
+        return P2pPacket.finAck(transfer, status);
+    }
+
+
+    /**
+     * Stop the transfer and close the files, the kept chunks stay in the part and map files
+     */
+    public void abort() {
+        closed = true;
+        try {
+            if (output != null) {
+                output.close();
+            }
+            if (mapOutput != null) {
+                mapOutput.close();
+            }
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package messenger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+
+/*
+ * Sends a file to a peer over UDP reliably (/p2pvideo).
+ * The transfer ID and size are announced to the receiver through the server first, the receiver
+ * ignores a START it was not told about, so START is sent again until the announcement arrived.
+ * The file is cut into numbered chunks, at most cwnd chunks are unacked at a time (sliding window).
+ * A chunk is sent again when 3 later chunks were acked (fast retransmit) or when the oldest unacked
+ * chunk times out. The window grows by one chunk per round trip and halves on a loss (AIMD),
+ * starting with slow start, and the chunks are paced over the round trip time.
+ * The receiver limits the chunks in flight too (flow control), to share its memory between transfers.
+ * The acks arrive on the UDP receive thread through onPacket().
+ * The chunks go from the file to the socket through one reused direct buffer,
+ * messenger.p2p.chunk sets their size (default 8192, at most 60 KB).
+ * Every chunk carries its CRC32C, the FIN the SHA-256 of the file (hashed on another thread while
+ * sending). When the receiver kept chunks of an interrupted transfer it answers START with HAVE
+ * packets, and only the missing chunks are sent.
+ */
+public class FileSender {
+    private static final int CHUNK_SIZE = Math.max(512, Math.min(P2pPacket.MAX_CHUNK, Settings.getInt("messenger.p2p.chunk", 8192)));
+    private static final int INITIAL_WINDOW = 16;
+    private static final int MAX_WINDOW = P2pPacket.MAX_SACK_WORDS * 64;   // The receiver can sack so many
+    private static final int DUPLICATE_THRESHOLD = 3;
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(2);
+    private static final long GIVE_UP = TimeUnit.SECONDS.toNanos(10);     // Without any ack
+    private static final long PACING_SLACK = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress target;
+    private final int transfer;
+    private final File file;
+    private final String username;
+    private final long size;
+    private final long modified;
+    private final int chunks;
+    private final CRC32C crc = new CRC32C();
+
+    // Guarded by this
+    private final BitSet acked;
+    private final long[] sentAt = new long[MAX_WINDOW];         // Last send time of the chunks in the window
+    private final boolean[] resent = new boolean[MAX_WINDOW];   // Retransmitted, no rtt sample (Karn)
+    private final ArrayDeque<Integer> lost = new ArrayDeque<>();
+    private int base = 0;               // Oldest unacked chunk
+    private int next = 0;               // Next chunk never sent
+    private int highestAcked = -1;
+    private int lossMarked = -1;        // Chunks up to here were checked for loss
+    private int recoveryEnd = -1;       // The window is halved once per round trip
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = MAX_WINDOW;
+    private int window = INITIAL_WINDOW;    // Advertised by the receiver
+    private long srtt = 0;
+    private long rttvar = 0;
+    private long rto = TimeUnit.MILLISECONDS.toNanos(200);
+    private long lastProgress;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean busy = false;
+    private boolean refused = false;
+    private boolean corrupt = false;
+    private int have = 0;               // Chunks the receiver kept
+    private int haveTotal = -1;         // Chunks the receiver said it kept
+    private int retransmits = 0;
+
+
+    /**
+     * FileSender constructor
+     * @param channel DatagramChannel the client's UDP channel
+     * @param audience Audience the receiver
+     * @param filePath String the file to send
+     * @param username String the sender
+     */
+    public FileSender(DatagramChannel channel, Audience audience, String filePath, String username) {
+        this.channel = channel;
+        this.target = new InetSocketAddress(audience.getAddress(), audience.getUdpPort());
+        this.transfer = ThreadLocalRandom.current().nextInt();
+        this.file = new File(filePath);
+        this.username = username;
+        this.size = file.length();
+        this.modified = file.lastModified();
+        this.chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        this.acked = new BitSet(chunks);
+    }
+
+
+    /**
+     * Test if a packet belongs to this transfer
+     * @param from SocketAddress
+     * @param id int transfer ID of the packet
+     * @return boolean
+     */
+    public boolean isTransfer(SocketAddress from, int id) {
+        return transfer == id && target.equals(from);
+    }
+
+
+    /**
+     * Get the transfer ID
+     * @return int
+     */
+    public int getTransfer() {
+        return transfer;
+    }
+
+
+    /**
+     * Send the whole file, returns when the receiver has it
+     * @param announcer P2pEndpoint.Announcer tells the receiver to expect the transfer, before START
+     * @return String a summary of the transfer
+     * @throws IOException when the file can't be read, the receiver refuses it or stops answering
+     */
+    public String send(P2pEndpoint.Announcer announcer) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException(file.getPath() + " not found");
+        }
+        announcer.announce(transfer, size);
+        long begin = System.nanoTime();
+        CompletableFuture<byte[]> digest = CompletableFuture.supplyAsync(this::digest, P2pEndpoint.digesters);
+        try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            sendControl(P2pPacket.start(transfer, size, CHUNK_SIZE, modified, username, file.getName()), () -> started || busy || refused);
+            if (busy) {
+                throw new IOException("the receiver is busy, try again later");
+            }
+            if (refused) {
+                throw new IOException("the receiver refused the file, it is too large");
+            }
+            ByteBuffer packet = ByteBuffer.allocateDirect(P2pPacket.DATA_HEADER + CHUNK_SIZE);
+            long nextSendTime = System.nanoTime();
+            while (true) {
+                int chunk;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    if (base >= chunks) {
+                        break;
+                    }
+                    if (now - lastProgress > GIVE_UP) {
+                        throw new IOException("the receiver does not answer");
+                    }
+                    checkTimeout(now);
+                    long wait = Math.max(0, nextSendTime - now);
+                    chunk = wait > PACING_SLACK ? -1 : pickChunk();
+                    if (chunk < 0) {
+                        // Wait for an ack, a timeout or the pacing
+                        long timeout = wait > PACING_SLACK ? wait : Math.max(PACING_SLACK, sentAt[base % MAX_WINDOW] + rto - now);
+                        TimeUnit.NANOSECONDS.timedWait(this, timeout);
+                        continue;
+                    }
+                    sentAt[chunk % MAX_WINDOW] = now;
+                    // Spread the window over the round trip
+                    long gap = srtt == 0 ? 0 : (long) (srtt / cwnd);
+                    nextSendTime = Math.max(nextSendTime, now - srtt) + gap;
+                }
+                sendChunk(input, chunk, packet);
+            }
+            sendControl(P2pPacket.fin(transfer, retransmits, digest.get()), () -> finished);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("can't hash " + file.getName() + ": " + e.getCause().getMessage());
+        } finally {
+            digest.cancel(false);
+        }
+        if (corrupt) {
+            throw new IOException("the file received by the user does not match, send it again");
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        String resumed = have == 0 ? "" : String.format(", resumed with %d chunks kept", have);
+        return String.format("%s has been uploaded and verified, %d bytes in %.2f s (%.2f MB/s), %d chunks retransmitted%s",
+            file.getName(), size, seconds, size / seconds / 1e6, retransmits, resumed);
+    }
+
+
+    /**
+     * Hash the whole file, runs on a digester thread
+     * @return byte[] SHA-256
+     */
+    private byte[] digest() {
+        try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (input.read(buffer) >= 0) {
+                sha.update(buffer.flip());
+                buffer.clear();
+            }
+            return sha.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+
+    /**
+     * Choose the chunk to send: a lost one first, then a new one if the window allows
+     * Called with the lock held.
+     * @return int the chunk, -1 if none
+     */
+    private int pickChunk() {
+        // Chunks the receiver kept are not sent
+        while (next < chunks && acked.get(next)) {
+            next++;
+        }
+        while (base < next && acked.get(base)) {
+            base++;
+        }
+        Integer chunk;
+        while ((chunk = lost.poll()) != null) {
+            if (!acked.get(chunk)) {
+                resent[chunk % MAX_WINDOW] = true;
+                retransmits++;
+                return chunk;
+            }
+        }
+        if (next < chunks && next - base < Math.min((int) cwnd, window)) {
+            resent[next % MAX_WINDOW] = false;
+            return next++;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Retransmit the oldest unacked chunk if it timed out, and back off
+     * Called with the lock held.
+     * @param now long
+     */
+    private void checkTimeout(long now) {
+        if (base >= next || now - sentAt[base % MAX_WINDOW] < rto) {
+            return;
+        }
+        if (!lost.contains(base)) {
+            lost.addFirst(base);
+        }
+        ssthresh = Math.max(2, cwnd / 2);
+        cwnd = 2;
+        rto = Math.min(MAX_RTO, rto * 2);
+        recoveryEnd = next;
+        // Not again before the retransmission had the time to be acked
+        sentAt[base % MAX_WINDOW] = now;
+    }
+
+
+    /**
+     * Read a chunk of the file behind the header, with its CRC32C, and send it
+     * @param input FileChannel
+     * @param chunk int
+     * @param packet ByteBuffer reused direct packet buffer
+     * @throws IOException
+     */
+    private void sendChunk(FileChannel input, int chunk, ByteBuffer packet) throws IOException {
+        long position = (long) chunk * CHUNK_SIZE;
+        int length = (int) Math.min(CHUNK_SIZE, size - position);
+        packet.clear();
+        packet.put(P2pPacket.DATA).putInt(transfer).putInt(chunk).putInt(0);
+        packet.limit(P2pPacket.DATA_HEADER + length);
+        while (packet.hasRemaining()) {
+            if (input.read(packet, position + packet.position() - P2pPacket.DATA_HEADER) < 0) {
+                throw new EOFException(file.getPath() + " was truncated");
+            }
+        }
+        packet.position(P2pPacket.DATA_HEADER);
+        crc.reset();
+        crc.update(packet);
+        packet.putInt(P2pPacket.DATA_HEADER - 4, (int) crc.getValue());
+        packet.flip();
+        channel.send(packet, target);
+    }
+
+
+    /**
+     * Send a control packet until the condition holds, every rto
+     * @param packet ByteBuffer
+     * @param done BooleanSupplier checked with the lock held
+     * @throws IOException when the receiver does not answer
+     * @throws InterruptedException
+     */
+    private void sendControl(ByteBuffer packet, BooleanSupplier done) throws IOException, InterruptedException {
+        synchronized (this) {
+            lastProgress = System.nanoTime();
+        }
+        while (true) {
+            channel.send(packet.rewind(), target);
+            synchronized (this) {
+                long deadline = System.nanoTime() + rto;
+                long wait;
+                while (!done.getAsBoolean() && (wait = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+                if (done.getAsBoolean()) {
+                    return;
+                }
+                // The receiver answers while it checks the file
+                if (System.nanoTime() - lastProgress > GIVE_UP) {
+                    throw new IOException("the receiver does not answer");
+                }
+                rto = Math.min(MAX_RTO, rto * 2);
+            }
+        }
+    }
+
+
+    /**
+     * Handle an ACK, HAVE, FIN_ACK, BUSY or REFUSED from the receiver, runs on the UDP receive thread
+     * @param packet ByteBuffer positioned after the header
+     * @param type byte
+     */
+    public synchronized void onPacket(ByteBuffer packet, byte type) {
+        long now = System.nanoTime();
+        lastProgress = now;
+        if (type == P2pPacket.FIN_ACK) {
+            finished = true;
+            corrupt = packet.get() != P2pPacket.VERIFIED;
+            notifyAll();
+            return;
+        }
+        if (type == P2pPacket.BUSY) {
+            busy = !started;
+            notifyAll();
+            return;
+        }
+        if (type == P2pPacket.REFUSED) {
+            refused = !started;
+            notifyAll();
+            return;
+        }
+        if (type == P2pPacket.HAVE) {
+            onHave(packet);
+            return;
+        }
+        if (!started) {
+            started = true;
+            notifyAll();
+        }
+        int cumulative = packet.getInt();
+        window = Math.max(1, Math.min(MAX_WINDOW, packet.getInt()));
+        int words = packet.get();
+        int newest = -1;
+        int newlyAcked = 0;
+        for (int chunk = base; chunk < Math.min(cumulative, next); chunk++) {
+            if (!acked.get(chunk)) {
+                acked.set(chunk);
+                newest = chunk;
+                newlyAcked++;
+            }
+        }
+        for (int w = 0; w < words; w++) {
+            long bits = packet.getLong();
+            while (bits != 0) {
+                int chunk = cumulative + 1 + w * 64 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (chunk < next && !acked.get(chunk)) {
+                    acked.set(chunk);
+                    newest = Math.max(newest, chunk);
+                    newlyAcked++;
+                }
+            }
+        }
+        if (newlyAcked == 0) {
+            return;
+        }
+        if (!resent[newest % MAX_WINDOW]) {
+            sampleRtt(now - sentAt[newest % MAX_WINDOW]);
+        }
+        highestAcked = Math.max(highestAcked, newest);
+        while (base < next && acked.get(base)) {
+            base++;
+        }
+        // Grow the window: doubles per round trip in slow start, then one chunk per round trip
+        for (int i = 0; i < newlyAcked; i++) {
+            cwnd = Math.min(window, cwnd < ssthresh ? cwnd + 1 : cwnd + 1 / cwnd);
+        }
+        markLost();
+        notifyAll();
+    }
+
+
+    /**
+     * Take a part of the bitmap of the chunks the receiver kept, the transfer starts once it has all of it
+     * Called with the lock held.
+     * @param packet ByteBuffer the HAVE packet after the header
+     */
+    private void onHave(ByteBuffer packet) {
+        if (started) {
+            return;
+        }
+        haveTotal = packet.getInt();
+        int first = packet.getInt();
+        int words = packet.getShort();
+        for (int w = 0; w < words; w++) {
+            long bits = packet.getLong();
+            while (bits != 0) {
+                int chunk = (first + w) * 64 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (chunk < chunks && !acked.get(chunk)) {
+                    acked.set(chunk);
+                    have++;
+                }
+            }
+        }
+        if (have >= haveTotal) {
+            started = true;
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Chunks with DUPLICATE_THRESHOLD acked chunks after them are lost, halve the window once per round trip
+     * Called with the lock held.
+     */
+    private void markLost() {
+        int limit = highestAcked - DUPLICATE_THRESHOLD;
+        for (int chunk = Math.max(base, lossMarked + 1); chunk <= limit; chunk++) {
+            if (!acked.get(chunk)) {
+                lost.add(chunk);
+                if (chunk >= recoveryEnd) {
+                    ssthresh = Math.max(2, cwnd / 2);
+                    cwnd = ssthresh;
+                    recoveryEnd = next;
+                }
+            }
+        }
+        lossMarked = Math.max(lossMarked, limit);
+    }
+
+
+    /**
+     * Update the smoothed round trip time and the retransmission timeout (RFC 6298)
+     * @param rtt long nanoseconds
+     */
+    private void sampleRtt(long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + 4 * rttvar));
+    }
+}
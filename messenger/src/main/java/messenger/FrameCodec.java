@@ -0,0 +1,145 @@
+package messenger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Encodes and decodes the messages between server and client in one of two formats:
+ *  - legacy: DataOutputStream.writeUTF, 2 bytes length + modified UTF-8, at most 64 KB
+ *  - framed: 4 bytes body length + 1 byte type + UTF-8 body, at most MAX_BODY
+ * Every connection starts in legacy format. A client asks for frames by sending HELLO,
+ * the server replies HELLO_ACK and both sides use frames from then on.
+ */
+public class FrameCodec {
+    public static final String HELLO = "\u0000FRAMING 1";       // Client -> server, the last legacy message
+    public static final String HELLO_ACK = "\u0000FRAMING OK";  // Server -> client, the last legacy message
+    public static final byte TEXT = 1;                          // Frame type of a text message
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_BODY = 16 * 1024 * 1024;
+    public static final int MAX_LEGACY = 0xFFFF;                // Bytes of a legacy message
+
+
+    /**
+     * Encode a message in the legacy writeUTF format
+     * @param message String message
+     * @return byte[] encoded message
+     * @throws UTFDataFormatException if the message is longer than 64 KB
+     */
+    public static byte[] encodeLegacy(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + 2);
+        new DataOutputStream(bytes).writeUTF(message);
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * Count the bytes of a message in the legacy format, without its 2 bytes length
+     * A message longer than MAX_LEGACY can only be sent on a framed connection.
+     * @param message CharSequence
+     * @return int modified UTF-8 bytes
+     */
+    public static int legacyLength(CharSequence message) {
+        int length = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+
+
+    /**
+     * Encode a message as a text frame
+     * @param message String message
+     * @return byte[] encoded frame
+     * @throws IOException if the message is longer than MAX_BODY
+     */
+    public static byte[] encodeFrame(String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        if (body.length > MAX_BODY) {
+            throw new IOException("Frame too large: " + body.length + " bytes");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        frame.putInt(body.length).put(TEXT).put(body);
+        return frame.array();
+    }
+
+
+    /**
+     * Read a frame from a blocking stream
+     * @param in DataInputStream
+     * @return String the text of the frame
+     * @throws IOException on a malformed frame
+     */
+    public static String readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte type = in.readByte();
+        checkHeader(length, type);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Decode a legacy message from a buffer in read mode
+     * @param buffer ByteBuffer
+     * @return String the message, null if it is not complete yet
+     * @throws IOException
+     */
+    public static String decodeLegacy(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int length = buffer.getShort(buffer.position()) & 0xFFFF;
+        if (buffer.remaining() < 2 + length) {
+            return null;
+        }
+        byte[] message = new byte[2 + length];
+        buffer.get(message);
+        return new DataInputStream(new java.io.ByteArrayInputStream(message)).readUTF();
+    }
+
+
+    /**
+     * Decode a frame from a buffer in read mode
+     * @param buffer ByteBuffer
+     * @return String the text of the frame, null if it is not complete yet
+     * @throws IOException on a malformed frame
+     */
+    public static String decodeFrame(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        checkHeader(length, buffer.get(buffer.position() + 4));
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            return null;
+        }
+        buffer.position(buffer.position() + HEADER_SIZE);
+        String text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+
+
+    /**
+     * Validate a frame header
+     * @param length int body length
+     * @param type byte frame type
+     * @throws IOException on a malformed frame
+     */
+    private static void checkHeader(int length, byte type) throws IOException {
+        if (length < 0 || length > MAX_BODY) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (type != TEXT) {
+            throw new IOException("Unknown frame type: " + type);
+        }
+    }
+}
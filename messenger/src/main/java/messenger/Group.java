@@ -0,0 +1,151 @@
+package messenger;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/*
+ * Group object used in the application
+ * Manages the groupmembers and groupmessage log
+ * The members are an immutable snapshot replaced on every join (copy on write):
+ * isMember and the fan-out of sendMessage read the current snapshot without locking,
+ * the joins are serialized on the group.
+ */
+public class Group {
+    private String groupName;
+    private volatile Set<String> groupmembers;      // Unmodifiable, in join order
+    private GroupMessageLog gml;
+
+    /**
+     * Group object constructor
+     * @param command Command the user's input
+     * @param creator String the group creator
+     */
+    public Group(Command command, String creator) {
+        this.groupName = command.getArg(0);
+        gml = new GroupMessageLog(groupName + "_messageLog.txt");
+        // Creator is the first member
+        Set<String> members = new LinkedHashSet<>();
+        members.add(creator);
+        for (int i = 1; i < command.getArgSize(); i++) {
+            members.add(command.getArg(i));
+        }
+        groupmembers = Collections.unmodifiableSet(members);
+    }
+
+
+    /**
+     * Group object constructor for a group read back from the GroupStore
+     * @param groupName String
+     * @param members Set<String> the members in join order, creator first, owned by the group from now on
+     */
+    Group(String groupName, Set<String> members) {
+        this.groupName = groupName;
+        gml = new GroupMessageLog(groupName + "_messageLog.txt");
+        groupmembers = Collections.unmodifiableSet(members);
+    }
+
+
+    /**
+     * Return the group name
+     * @return String groupName
+     */
+    public String getGroupName() {
+        return groupName;
+    }
+
+
+    /**
+     * Return the log of the messages sent in this group
+     * @return GroupMessageLog
+     */
+    GroupMessageLog getMessageLog() {
+        return gml;
+    }
+
+
+    /**
+     * Return the group creator
+     * @return String creator
+     */
+    public String getCreator() {
+        // Creator is the first member in list.
+        return groupmembers.iterator().next();
+    }
+
+
+    /**
+     * Return all the members
+     * @return Set<String> an unmodifiable snapshot of the groupmembers
+     */
+    public Set<String> getGroupmembers() {
+        return groupmembers;
+    }
+
+
+    /**
+     * Let the user join this group
+     * @param username String the user about to join
+     * @return boolean false if the user was a member already
+     */
+    public boolean join(String username) {
+        if (isMember(username)) {
+            return false;
+        }
+        synchronized (this) {
+            Set<String> members = new LinkedHashSet<>(groupmembers);
+            if (!members.add(username)) {
+                return false;
+            }
+            groupmembers = Collections.unmodifiableSet(members);
+            return true;
+        }
+    }
+
+    /**
+     * Test if the given user is a member of this group
+     * @param name String user
+     * @return boolean
+     */
+    public boolean isMember(String name) {
+        return groupmembers.contains(name);
+    }
+
+    
+    /**
+     * Send a message to every groupmember excludes the sender
+     * The message is offered without waiting, a member whose queue is full gets the overflow policy
+     * on its own and never holds up the others (or the group's shard)
+     * @param msg Message the message
+     * @param log UserLog userlog to get the user contacts
+     * @throws IOException
+     */
+    public void sendMessage(Message msg, UserLog log) throws IOException {
+        gml.logMessage(msg);    // Log the message in groupname_message.txt
+        String text = msg.getTimestamp() + ", " + getGroupName() + ", " + msg.getUsername() + ":" + msg.getMessage();
+        // For each member send the message, a join meanwhile publishes a new snapshot
+        for (String member : groupmembers) {
+            if (!member.equals(msg.getUsername())) {
+                Contact contact = log.getUserContact(member);
+                if (contact == null) {
+                    continue;   // Logged out
+                }
+                try {
+                    contact.offerMessage(text);
+                } catch (IOException e) {
+                    // Closed meanwhile, the other members still get it
+                }
+            }
+        }
+    }
+
+
+    /**
+     * When turn to string out put all the users.
+     */
+    @Override
+    public String toString() {
+        return String.join(", ", getGroupmembers());
+    }
+}
@@ -0,0 +1,164 @@
+package messenger;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Runs the work of the groups (logging and fanning out a /groupmsg) on a fixed set of shards.
+ * A group always goes to the same shard, one thread takes the tasks of its mailbox in order:
+ * the messages of a group are numbered in the log and delivered to every member in the order
+ * they were submitted, while the groups of different shards run in parallel.
+ *  - messenger.group.shards (default the number of processors) threads
+ *  - messenger.group.mailbox (default 1024) tasks a shard's mailbox holds, a submit to a full
+ *    mailbox is refused: it never waits, so a reactor thread can submit
+ * A task must not wait on a member: Group offers the messages without waiting for queue space.
+ * The depth of the mailboxes, the deepest one seen, the refused tasks and the time a task waited
+ * in its mailbox are reported by Metrics.
+ * Thread safe.
+ */
+public class GroupExecutor {
+    private final Shard[] shards;
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /*
+     * The work of a group, may fail with an IOException
+     */
+    @FunctionalInterface
+    interface Task {
+        void run() throws IOException;
+    }
+
+    /*
+     * A task waiting in a mailbox
+     */
+    private static class Queued {
+        final String group;
+        final Task task;
+        final long queued = System.nanoTime();
+
+        Queued(String group, Task task) {
+            this.group = group;
+            this.task = task;
+        }
+    }
+
+    /*
+     * One thread and its mailbox
+     */
+    private static class Shard implements Runnable {
+        final BlockingQueue<Queued> mailbox;
+
+        Shard(int capacity) {
+            mailbox = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Queued next;
+                try {
+                    next = mailbox.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Metrics.recordMailboxWait(System.nanoTime() - next.queued);
+                try {
+                    next.task.run();
+                } catch (IOException | RuntimeException e) {
+                    ConsoleLog.error("Group " + next.group + ": task failed", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * GroupExecutor constructor from the settings
+     */
+    public GroupExecutor() {
+        this(Settings.getInt("messenger.group.shards", Runtime.getRuntime().availableProcessors()),
+            Settings.getInt("messenger.group.mailbox", 1024));
+    }
+
+
+    /**
+     * GroupExecutor constructor, starts the shard threads
+     * @param shardCount int threads
+     * @param capacity int tasks per mailbox
+     */
+    public GroupExecutor(int shardCount, int capacity) {
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(Math.max(1, capacity));
+            Thread t = new Thread(shards[i], "group-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+
+    /**
+     * Queue the work of a group behind its previous tasks
+     * @param group String the group name, picks the shard
+     * @param task Task
+     * @return boolean false if the mailbox is full, the task will not run
+     */
+    public boolean submit(String group, Task task) {
+        BlockingQueue<Queued> mailbox = shardOf(group).mailbox;
+        if (!mailbox.offer(new Queued(group, task))) {
+            rejected.increment();
+            return false;
+        }
+        int depth = mailbox.size();
+        if (depth > maxDepth.get()) {
+            maxDepth.accumulateAndGet(depth, Math::max);
+        }
+        return true;
+    }
+
+
+    /**
+     * Get the shard of a group
+     * @param group String
+     * @return Shard
+     */
+    private Shard shardOf(String group) {
+        int hash = group.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+
+    /**
+     * Get the number of tasks waiting in all the mailboxes
+     * @return long
+     */
+    public long getDepth() {
+        long depth = 0;
+        for (Shard shard : shards) {
+            depth += shard.mailbox.size();
+        }
+        return depth;
+    }
+
+
+    /**
+     * Get the most tasks a mailbox held at once since the start
+     * @return long
+     */
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+
+    /**
+     * Get the number of tasks refused because their mailbox was full
+     * @return long
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,144 @@
+package messenger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Manage all the existing groups
+ * Thread safe: the groups are in a concurrent map, a name is taken atomically by putIfAbsent.
+ * The groups and their members are kept in a GroupStore (groups.snapshot, groups.log),
+ * read back when the server starts.
+ */
+public class GroupLog {
+    private Map<String, Group> groups = new ConcurrentHashMap<>(); // Store all the created groups
+    private GroupStore store;                                       // null to keep the groups in memory only
+
+
+    /**
+     * GroupLog constructor, stores the groups at messenger.groups.path (default groups)
+     */
+    public GroupLog() {
+        this(Settings.getString("messenger.groups.path", "groups"));
+    }
+
+
+    /**
+     * GroupLog constructor, reads the groups stored at the path
+     * @param path String the store files are path.snapshot, path.log, null to keep the groups in memory only
+     */
+    public GroupLog(String path) {
+        if (path == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        GroupStore store = new GroupStore(path);
+        try {
+            for (GroupStore.Entry entry : store.load()) {
+                groups.put(entry.getName(), new Group(entry.getName(), entry.getMembers()));
+            }
+        } catch (IOException e) {
+            // Don't write changes on top of files that can't be read back
+            ConsoleLog.error("Groups: can't read the groups at " + path + ", they are kept in memory only", e);
+            return;
+        }
+        ConsoleLog.info("Groups: " + groups.size() + " groups read in " + (System.nanoTime() - start) / 1000000 + " ms");
+        this.store = store;
+        store.startCompactor(groups.values());
+    }
+
+
+    /**
+     * Register a group, if matchs the requirment, then add to the created groups
+     * The requirements:
+     *  1.Creator is active
+     *  2.All member are active
+     *  3.The group name is not taken, checked and taken in one step
+     * @param g Group group to be add
+     * @param log UserLog helps to check if user is active
+     * @return Group g when registered, the group that has the name already, null if a member is not active
+     */
+    public Group registerGroup(Group g, UserLog log) {
+        if (!checkGroup(g, log)) {
+            return null;
+        }
+        Group existing = groups.putIfAbsent(g.getGroupName(), g);
+        if (existing != null) {
+            return existing;
+        }
+        if (store != null) {
+            store.created(g);
+        }
+        return g;
+    }
+
+
+    /**
+     * Let a user join a group and store the change
+     * @param g Group
+     * @param username String
+     * @return boolean false if the user was a member already
+     * @throws IllegalArgumentException if the username can't be stored (see GroupStore.fits)
+     */
+    public boolean join(Group g, String username) {
+        if (!GroupStore.fits(username)) {
+            throw new IllegalArgumentException("The username is too long to be stored");
+        }
+        if (!g.join(username)) {
+            return false;
+        }
+        if (store != null) {
+            store.joined(g.getGroupName(), username);
+        }
+        return true;
+    }
+
+
+    /**
+     * Check if the group matches the requirement mentioned in registerGroup() (The above function)
+     * @param g Group 
+     * @param log UserLog 
+     * @return boolean
+     */
+    private boolean checkGroup(Group g, UserLog log) {
+        // The names must fit in the group store
+        if (log.isActive(g.getCreator()) && GroupStore.fits(g.getGroupName())) {
+            for (String groupmember : g.getGroupmembers()) {
+                if (! log.isActive(groupmember) || ! GroupStore.fits(groupmember)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Test if a groupname is already being used
+     * @param groupname String 
+     * @return boolean
+     */
+    public boolean isCreated(String groupname) {
+        return groups.containsKey(groupname);
+    }
+
+
+    /**
+     * Get a Group object with groupname as key
+     * @param groupname String the groupname
+     * @return Group the group object (On Fail return null)
+     */
+    public Group getGroup(String groupname) {
+        return groups.get(groupname);
+    }
+
+
+    /**
+     * Get the number of groups
+     * @return int
+     */
+    public int getGroupCount() {
+        return groups.size();
+    }
+}
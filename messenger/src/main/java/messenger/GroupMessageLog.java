@@ -0,0 +1,39 @@
+package messenger;
+
+/*
+ * Extends the message log 
+ * for logging message in group
+ */
+public class GroupMessageLog extends MessageLog {
+    /**
+     * Set the path, when logging shows the group name as the log file name
+     * @param path String
+     */
+    public GroupMessageLog(String path) {
+        super();
+        setLogPath(path);
+    }
+
+
+    /**
+     * Get the number of user fields of an entry, before the message
+     * @return int the sender
+     */
+    @Override
+    int userFields() {
+        return 1;
+    }
+
+
+    /**
+     * Convert an entry of a group log written before the segments, the username is the sender
+     * @param timestamp String
+     * @param username String
+     * @param message String with its line feeds
+     * @return String TIMESTAMP; USERNAME;MESSAGE
+     */
+    @Override
+    String upgrade(String timestamp, String username, String message) {
+        return timestamp + "; " + username + ";" + escape(message);
+    }
+}
@@ -0,0 +1,482 @@
+package messenger;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps the groups and their members on disk so they survive a restart.
+ *  - groups.snapshot: every group with its members at the last compaction
+ *  - groups.log: the changes since, one record per created group or join
+ * Records of the change log:
+ *  - CREATE: type, group, member count, members (creator first)
+ *  - JOIN: type, group, member
+ * A string is its UTF-8 length (unsigned short, so at most MAX_STRING bytes) and bytes. The snapshot is a header (magic, version),
+ * the user count and every user once, then the group count and the name, member count and
+ * members of each group, a member being the number of the user (int). A restart only decodes
+ * each user name once however many groups the user is in.
+ *
+ * On startup the snapshot is read and only the change log is replayed, a record cut by a crash
+ * is dropped. A change is written to the log once it is made in memory, so replaying a change
+ * the snapshot already has must do nothing: a CREATE of a known group adds the missing members,
+ * a JOIN of a member is ignored.
+ *
+ * Every messenger.groups.compactInterval milliseconds (default 60000) a compactor task folds the
+ * change log into a new snapshot. The log is set aside as groups.log.old under the lock and the
+ * snapshot is written outside of it, a restart before the snapshot is in place replays both logs.
+ * The writes are not forced to the disk: a server crash loses nothing, a system crash may lose
+ * the last changes.
+ * Thread safe.
+ */
+public class GroupStore {
+    private static final byte CREATE = 1;
+    private static final byte JOIN = 2;
+    private static final int MAGIC = 0x4D475250;    // "MGRP"
+    private static final int VERSION = 1;
+    static final int MAX_STRING = 0xFFFF;          // Bytes of a group or user name
+    private static final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "groups-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Path snapshotPath;
+    private final Path logPath;
+    private final Path oldLogPath;
+    private FileChannel log;                        // Guarded by this
+    private boolean dirty = false;                  // Guarded by this
+
+    /*
+     * A group read from the files
+     */
+    public static class Entry {
+        final String name;
+        final Set<String> members;      // In join order
+
+        Entry(String name, Set<String> members) {
+            this.name = name;
+            this.members = members;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Set<String> getMembers() {
+            return members;
+        }
+    }
+
+
+    /**
+     * GroupStore constructor, nothing is read until load()
+     * @param path String the files are path.snapshot, path.log
+     */
+    public GroupStore(String path) {
+        this.snapshotPath = Paths.get(path + ".snapshot");
+        this.logPath = Paths.get(path + ".log");
+        this.oldLogPath = Paths.get(path + ".log.old");
+    }
+
+
+    /**
+     * Read the groups: the snapshot, then the changes since, and open the change log for the new changes
+     * @return Collection<Entry> the groups in creation order of the snapshot, then of the log
+     * @throws IOException
+     */
+    public synchronized Collection<Entry> load() throws IOException {
+        Map<String, Entry> groups = new LinkedHashMap<>();
+        Map<String, String> names = new HashMap<>();    // One String per user across all the groups
+        readSnapshot(groups, names);
+        replay(oldLogPath, groups, names);
+        long valid = replay(logPath, groups, names);
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (valid < log.size()) {
+            ConsoleLog.warn("Groups: dropped " + (log.size() - valid) + " bytes of a cut record");
+            log.truncate(valid);
+        }
+        log.position(valid);
+        dirty = valid > 0 || Files.exists(oldLogPath);
+        return groups.values();
+    }
+
+
+    /**
+     * Read the groups of the snapshot file, if any
+     * @param groups Map<String, Entry> filled with the groups
+     * @param names Map<String, String> the user names read so far
+     * @throws IOException when the file is not a snapshot or is cut
+     */
+    private void readSnapshot(Map<String, Entry> groups, Map<String, String> names) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(snapshotPath + " is not a groups snapshot");
+            }
+            String[] users = new String[buffer.getInt()];
+            for (int i = 0; i < users.length; i++) {
+                users[i] = intern(getString(buffer), names);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = getString(buffer);
+                int size = buffer.getInt();
+                Set<String> members = new LinkedHashSet<>(Math.min(size, buffer.remaining() / 4) * 4 / 3 + 1);
+                for (int m = 0; m < size; m++) {
+                    int user = buffer.getInt();
+                    if (user < 0 || user >= users.length) {
+                        throw new IOException(snapshotPath + " has an unknown user");
+                    }
+                    members.add(users[user]);
+                }
+                groups.put(name, new Entry(name, members));
+            }
+        } catch (BufferUnderflowException e) {
+            // Written to a temporary file and moved, a cut snapshot is not a crash
+            throw new IOException(snapshotPath + " is cut");
+        }
+    }
+
+
+    /**
+     * Apply the records of a change log
+     * @param path Path the change log
+     * @param groups Map<String, Entry> the groups to change
+     * @param names Map<String, String> the user names read so far
+     * @return long the length of the complete records
+     * @throws IOException
+     */
+    private long replay(Path path, Map<String, Entry> groups, Map<String, String> names) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        int valid = 0;
+        try {
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                String name = getString(buffer);
+                if (type == CREATE) {
+                    Set<String> members = getMembers(buffer, names);
+                    Entry group = groups.get(name);
+                    if (group == null) {
+                        groups.put(name, new Entry(name, members));
+                    } else {
+                        group.members.addAll(members);
+                    }
+                } else if (type == JOIN) {
+                    String member = intern(getString(buffer), names);
+                    Entry group = groups.get(name);
+                    // The CREATE of a group is always written before its joins
+                    if (group != null) {
+                        group.members.add(member);
+                    }
+                } else {
+                    break;
+                }
+                valid = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // Cut by a crash, the complete records are kept
+        }
+        return valid;
+    }
+
+
+    /**
+     * Record a new group, once it is registered
+     * The members are read under the lock, a join written before is in them.
+     * @param g Group
+     * @throws IllegalArgumentException if a name does not fit (see fits), nothing is written
+     */
+    public synchronized void created(Group g) {
+        Set<String> members = g.getGroupmembers();
+        byte[] group = encode(g.getGroupName());
+        List<byte[]> users = new ArrayList<>(members.size());
+        int length = 1 + 2 + group.length + 4;
+        for (String member : members) {
+            byte[] user = encode(member);
+            users.add(user);
+            length += 2 + user.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.put(CREATE).putShort((short) group.length).put(group).putInt(users.size());
+        for (byte[] user : users) {
+            record.putShort((short) user.length).put(user);
+        }
+        append(record);
+    }
+
+
+    /**
+     * Record that a user joined a group
+     * @param name String the group name
+     * @param member String the user
+     * @throws IllegalArgumentException if a name does not fit (see fits), nothing is written
+     */
+    public synchronized void joined(String name, String member) {
+        byte[] group = encode(name);
+        byte[] user = encode(member);
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + group.length + 2 + user.length);
+        record.put(JOIN).putShort((short) group.length).put(group).putShort((short) user.length).put(user);
+        append(record);
+    }
+
+
+    /**
+     * Write a record at the end of the change log
+     * Called with the lock held.
+     * @param record ByteBuffer filled
+     */
+    private void append(ByteBuffer record) {
+        if (log == null) {
+            return;
+        }
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            dirty = true;
+        } catch (IOException e) {
+            ConsoleLog.error("Groups: can't write " + logPath, e);
+        }
+    }
+
+
+    /**
+     * Compact the change log of the groups every messenger.groups.compactInterval milliseconds
+     * @param groups Collection<Group> a live view of every registered group
+     */
+    public void startCompactor(Collection<Group> groups) {
+        long interval = Settings.getLong("messenger.groups.compactInterval", 60000);
+        compactor.scheduleWithFixedDelay(() -> compact(groups), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Fold the change log into a new snapshot of the groups.
+     * Runs periodically on the compactor thread.
+     * @param groups Collection<Group> every registered group
+     */
+    public void compact(Collection<Group> groups) {
+        List<String> names = new ArrayList<>();
+        List<Set<String>> members = new ArrayList<>();
+        // No change is written meanwhile: every change in the set aside log is in the copy,
+        // a change made in memory but not written yet is in the copy and in the new log
+        synchronized (this) {
+            if (!dirty || log == null) {
+                return;
+            }
+            try {
+                // The copy of the previous compaction, if it failed, must stay until a snapshot has it
+                if (!Files.exists(oldLogPath)) {
+                    log.close();
+                    Files.move(logPath, oldLogPath, StandardCopyOption.ATOMIC_MOVE);
+                    log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+            } catch (IOException e) {
+                ConsoleLog.error("Groups: can't set " + logPath + " aside", e);
+                return;
+            }
+            for (Group group : groups) {
+                names.add(group.getGroupName());
+                members.add(group.getGroupmembers());   // Unmodifiable, replaced on join
+            }
+            dirty = false;
+        }
+        try {
+            writeSnapshot(names, members);
+            Files.delete(oldLogPath);
+        } catch (IOException | IllegalArgumentException e) {
+            ConsoleLog.error("Groups: can't write " + snapshotPath, e);
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+
+    /**
+     * Write the snapshot, replaced atomically so a crash leaves the previous one
+     * @param names List<String> the group names
+     * @param members List<Set<String>> the members of each group
+     * @throws IOException
+     */
+    private void writeSnapshot(List<String> names, List<Set<String>> members) throws IOException {
+        Path temp = Paths.get(snapshotPath + ".tmp");
+        try (FileChannel output = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Every user once, the members are their numbers
+            Map<String, Integer> users = new LinkedHashMap<>();
+            for (Set<String> group : members) {
+                for (String member : group) {
+                    users.putIfAbsent(member, users.size());
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(users.size());
+            for (String user : users.keySet()) {
+                buffer = putString(output, buffer, user);
+            }
+            buffer = reserve(output, buffer, 4);
+            buffer.putInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                buffer = putString(output, buffer, names.get(i));
+                buffer = reserve(output, buffer, 4 + 4 * members.get(i).size());
+                buffer.putInt(members.get(i).size());
+                for (String member : members.get(i)) {
+                    buffer.putInt(users.get(member));
+                }
+            }
+            flush(output, buffer);
+            output.force(false);
+        }
+        Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     * Make room in the write buffer, writing it out when full
+     * @param output FileChannel
+     * @param buffer ByteBuffer
+     * @param length int bytes needed
+     * @return ByteBuffer the buffer to go on with, larger if the bytes can't fit
+     * @throws IOException
+     */
+    private static ByteBuffer reserve(FileChannel output, ByteBuffer buffer, int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return buffer;
+        }
+        flush(output, buffer);
+        return length <= buffer.capacity() ? buffer : ByteBuffer.allocate(length);
+    }
+
+
+    /**
+     * Write out the write buffer and clear it
+     * @param output FileChannel
+     * @param buffer ByteBuffer
+     * @throws IOException
+     */
+    private static void flush(FileChannel output, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+        buffer.clear();
+    }
+
+
+    /**
+     * Put a string in the write buffer
+     * @param output FileChannel
+     * @param buffer ByteBuffer
+     * @param value String
+     * @return ByteBuffer the buffer to go on with
+     * @throws IOException
+     */
+    private static ByteBuffer putString(FileChannel output, ByteBuffer buffer, String value) throws IOException {
+        byte[] bytes = encode(value);
+        buffer = reserve(output, buffer, 2 + bytes.length);
+        buffer.putShort((short) bytes.length).put(bytes);
+        return buffer;
+    }
+
+
+    /**
+     * Test if a group or user name can be stored
+     * @param value String
+     * @return boolean false if its UTF-8 form is longer than MAX_STRING bytes
+     */
+    public static boolean fits(String value) {
+        // A char is at most 3 bytes, only a long name is encoded
+        return value.length() * 3 <= MAX_STRING || value.getBytes(StandardCharsets.UTF_8).length <= MAX_STRING;
+    }
+
+
+    /**
+     * Encode a string to be stored with its length
+     * @param value String
+     * @return byte[] UTF-8
+     * @throws IllegalArgumentException if it is longer than MAX_STRING bytes
+     */
+    private static byte[] encode(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING) {
+            throw new IllegalArgumentException("A name of " + bytes.length + " bytes can't be stored, at most " + MAX_STRING);
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Get a string from a read buffer
+     * @param buffer ByteBuffer
+     * @return String
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+
+    /**
+     * Get a member count and the members from a read buffer
+     * @param buffer ByteBuffer
+     * @param names Map<String, String> the user names read so far
+     * @return Set<String> the members in order
+     */
+    private static Set<String> getMembers(ByteBuffer buffer, Map<String, String> names) {
+        int count = buffer.getInt();
+        // A cut count must not allocate more than the buffer holds
+        Set<String> members = new LinkedHashSet<>(Math.min(count, buffer.remaining() / 2) * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            members.add(intern(getString(buffer), names));
+        }
+        return members;
+    }
+
+
+    /**
+     * Share one String per user name, a user is in many groups
+     * @param name String
+     * @param names Map<String, String> the user names read so far
+     * @return String
+     */
+    private static String intern(String name, Map<String, String> names) {
+        String known = names.putIfAbsent(name, name);
+        return known == null ? name : known;
+    }
+}
@@ -0,0 +1,321 @@
+package messenger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * The appender stage of the message logs.
+ * Senders only queue their entries, one appender thread takes everything queued,
+ * writes the entries of each log file with a single write and then applies the durability policy:
+ *  - NONE: never fsync, the OS decides
+ *  - INTERVAL: fsync the written files at most every fsyncInterval milliseconds
+ *  - BATCH: fsync the written files after every batch
+ * The FileChannels stay open, at most MAX_OPEN_FILES at a time.
+ * A write that fails is retried on a reopened channel, MAX_ATTEMPTS times in all. If it still fails,
+ * the entries of that file are lost: the error is reported and the failure callback of every entry
+ * is called, so the log can read back what was written.
+ */
+public class LogAppender implements Runnable {
+    public enum Durability { NONE, INTERVAL, BATCH }
+
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_OPEN_FILES = 256;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 100;                         // Milliseconds before a write is retried
+    private static final Entry SHUTDOWN = new Entry(null, null, null); // Queued on JVM shutdown
+    private static final LogAppender instance = new LogAppender(
+        Settings.getEnum("messenger.log.durability", Durability.INTERVAL),
+        Settings.getLong("messenger.log.fsyncInterval", 1000),
+        Settings.getInt("messenger.log.queueCapacity", 65536));
+
+    private final Durability durability;
+    private final long fsyncInterval;
+    private final BlockingQueue<Entry> queue;
+    private final Map<String, FileChannel> channels = new LinkedHashMap<>(16, 0.75f, true);  // Appender thread only
+    private final List<FileChannel> unsynced = new ArrayList<>();                              // Appender thread only
+    private final Thread thread;
+    private long lastSync = System.nanoTime();
+
+    /*
+     * A formatted line waiting to be appended to a log file
+     */
+    private static class Entry {
+        final String path;
+        final String line;
+        final Consumer<IOException> failed;
+        final long queued = System.nanoTime();
+
+        Entry(String path, String line, Consumer<IOException> failed) {
+            this.path = path;
+            this.line = line;
+            this.failed = failed;
+        }
+    }
+
+
+    /**
+     * LogAppender constructor, starts the appender thread
+     * @param durability Durability when to fsync
+     * @param fsyncInterval long milliseconds between fsyncs with INTERVAL
+     * @param capacity int max queued entries, senders wait when full
+     */
+    public LogAppender(Durability durability, long fsyncInterval, int capacity) {
+        this.durability = durability;
+        this.fsyncInterval = fsyncInterval;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.thread = new Thread(this, "log-appender");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "log-appender-shutdown"));
+    }
+
+
+    /**
+     * Get the appender shared by all message logs
+     * @return LogAppender
+     */
+    public static LogAppender getInstance() {
+        return instance;
+    }
+
+
+    /**
+     * Queue a line to be appended to a log file. Lines of one file are written in the order queued.
+     * @param path String the log file
+     * @param line String the line without line separator
+     */
+    public void append(String path, String line) {
+        append(path, line, null);
+    }
+
+
+    /**
+     * Queue a line to be appended to a log file and learn if it is lost
+     * @param path String the log file
+     * @param line String the line without line separator
+     * @param failed Consumer<IOException> called if the line can't be written, null if not needed
+     */
+    public void append(String path, String line, Consumer<IOException> failed) {
+        try {
+            queue.put(new Entry(path, line, failed));
+        } catch (InterruptedException e) {
+            // Not queued, the caller's thread is told it was interrupted
+            Thread.currentThread().interrupt();
+            if (failed != null) {
+                failed.accept(new InterruptedIOException("Interrupted while queueing a log entry"));
+            }
+        }
+    }
+
+
+    /**
+     * Take the queued entries in batches and write them
+     */
+    @Override
+    public void run() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Entry first = queue.poll(pollTimeout(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    if (batch.remove(SHUTDOWN)) {
+                        // Write everything still queued, then stop
+                        queue.drainTo(batch);
+                        write(batch);
+                        sync(true);
+                        return;
+                    }
+                    write(batch);
+                    long written = System.nanoTime();
+                    for (Entry entry : batch) {
+                        Metrics.recordLogAppend(written - entry.queued);
+                    }
+                    batch.clear();
+                }
+                sync(false);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Let the appender write every entry still queued, used on JVM shutdown
+     */
+    private void shutdown() {
+        try {
+            queue.put(SHUTDOWN);
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * How long to wait for entries before checking the fsync interval
+     * @return long milliseconds
+     */
+    private long pollTimeout() {
+        return durability == Durability.INTERVAL && !unsynced.isEmpty() ? fsyncInterval : 1000;
+    }
+
+
+    /**
+     * Write a batch, one write per log file. The entries of a file that can't be written are failed.
+     * @param batch List<Entry> in queued order
+     * @throws InterruptedException if interrupted between two attempts
+     */
+    private void write(List<Entry> batch) throws InterruptedException {
+        Map<String, StringBuilder> byFile = new LinkedHashMap<>();
+        for (Entry entry : batch) {
+            byFile.computeIfAbsent(entry.path, p -> new StringBuilder()).append(entry.line).append(System.lineSeparator());
+        }
+        for (Map.Entry<String, StringBuilder> file : byFile.entrySet()) {
+            ByteBuffer bytes = ByteBuffer.wrap(file.getValue().toString().getBytes(StandardCharsets.UTF_8));
+            try {
+                write(file.getKey(), bytes);
+            } catch (IOException e) {
+                ConsoleLog.error("Can't write the log " + file.getKey() + ", its entries of this batch are lost", e);
+                for (Entry entry : batch) {
+                    if (entry.path.equals(file.getKey()) && entry.failed != null) {
+                        entry.failed.accept(e);
+                    }
+                }
+            }
+        }
+        if (durability == Durability.BATCH) {
+            sync(true);
+        }
+    }
+
+
+    /**
+     * Write the bytes of a log file, on a reopened channel again if a write fails.
+     * The bytes written before a failure are not written twice.
+     * @param path String
+     * @param bytes ByteBuffer
+     * @throws IOException the error of the last attempt
+     * @throws InterruptedException if interrupted between two attempts
+     */
+    private void write(String path, ByteBuffer bytes) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                FileChannel channel = open(path);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                if (durability != Durability.NONE && !unsynced.contains(channel)) {
+                    unsynced.add(channel);
+                }
+                return;
+            } catch (IOException e) {
+                close(path);
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                ConsoleLog.warn("Can't write the log " + path + ", retrying: " + e.getMessage());
+                Thread.sleep(RETRY_DELAY * attempt);
+            }
+        }
+    }
+
+
+    /**
+     * Fsync the written files if the durability policy asks for it
+     * @param force boolean fsync now regardless of the interval
+     */
+    private void sync(boolean force) {
+        if (unsynced.isEmpty()) {
+            return;
+        }
+        if (!force && System.nanoTime() - lastSync < TimeUnit.MILLISECONDS.toNanos(fsyncInterval)) {
+            return;
+        }
+        for (FileChannel channel : unsynced) {
+            try {
+                if (channel.isOpen()) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                // The written entries may not survive a crash, the next write reopens the file
+                ConsoleLog.error("Can't sync a message log", e);
+                channels.values().remove(channel);
+                closeQuietly(channel);
+            }
+        }
+        unsynced.clear();
+        lastSync = System.nanoTime();
+    }
+
+
+    /**
+     * Get the open channel of a log file, closing the least recently used one when too many are open
+     * @param path String
+     * @return FileChannel
+     * @throws IOException
+     */
+    private FileChannel open(String path) throws IOException {
+        FileChannel channel = channels.get(path);
+        if (channel != null) {
+            return channel;
+        }
+        if (channels.size() >= MAX_OPEN_FILES) {
+            Map.Entry<String, FileChannel> eldest = channels.entrySet().iterator().next();
+            FileChannel closed = eldest.getValue();
+            channels.remove(eldest.getKey());
+            try {
+                if (unsynced.remove(closed)) {
+                    closed.force(false);
+                }
+            } finally {
+                closeQuietly(closed);
+            }
+        }
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channels.put(path, channel);
+        return channel;
+    }
+
+
+    /**
+     * Close the channel of a log file after a failure, the next write opens it again
+     * @param path String
+     */
+    private void close(String path) {
+        FileChannel channel = channels.remove(path);
+        if (channel != null) {
+            unsynced.remove(channel);
+            closeQuietly(channel);
+        }
+    }
+
+
+    /**
+     * Close a channel, ignoring an error
+     * @param channel FileChannel
+     */
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ConsoleLog.warn("Can't close a message log: " + e.getMessage());
+        }
+    }
+}
@@ -1,10 +1,10 @@
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+package messenger;
 
 public class Message {
     private String message;
     private String username;
-    private LocalDateTime timestamp;
+    private String sender = null;       // Of a private message, the username is the receiver
+    private long timestamp;             // Epoch milliseconds
 
 
     /**
@@ -15,7 +15,19 @@ public class Message {
     public Message(String message, String username) {
         this.message = message;
         this.username = username;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = Timestamps.now();
+    }
+
+
+    /**
+     * Private message object constructor
+     * @param message String
+     * @param receiver String
+     * @param sender String
+     */
+    public Message(String message, String receiver, String sender) {
+        this(message, receiver);
+        this.sender = sender;
     }
 
 
@@ -37,6 +49,24 @@ public class Message {
     }
 
 
+    /**
+     * Get the sender of a private message
+     * @return String sender (null for a group message, the username is the sender)
+     */
+    public String getSender() {
+        return sender;
+    }
+
+
+    /**
+     * Get the timestamp
+     * @return long epoch milliseconds
+     */
+    public long getTime() {
+        return timestamp;
+    }
+
+
     /**
      * Get the timestamp as String
      * @return String timestamp
@@ -51,17 +81,20 @@ public class Message {
      * @return String timestamp
      */
     private String timeToString() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss");
-        return this.timestamp.format(formatter);
+        return Timestamps.format(timestamp);
     }
 
 
     /**
      * Format print of the message
      * TIMESTAMP; USERNAME; MESSAGE
+     * TIMESTAMP; SENDER; RECEIVER; MESSAGE for a private message
      */
     @Override
     public String toString() {
+        if (sender != null) {
+            return timeToString() + "; " + sender + "; " + username + ";" + message;
+        }
         return timeToString() + "; " + username + ";" + message;
     }
 }
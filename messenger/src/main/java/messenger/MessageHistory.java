@@ -0,0 +1,106 @@
+package messenger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * The last messages a client received from the server, in a fixed size ring buffer
+ * so the memory of the client stays flat however long it runs.
+ *  - messenger.history.size (default 256) messages are kept
+ *  - messenger.history.file (default none) the older messages are appended to this file
+ *    as they are pushed out of the ring, so the whole history is still on disk
+ * Thread safe.
+ */
+public class MessageHistory {
+    private final String[] ring;
+    private long count = 0;                     // Messages added, the next one goes to count % capacity
+    private BufferedWriter spill;
+
+
+    /**
+     * MessageHistory constructor from the settings
+     */
+    public MessageHistory() {
+        this(Settings.getInt("messenger.history.size", 256), Settings.getString("messenger.history.file", ""));
+    }
+
+
+    /**
+     * MessageHistory constructor
+     * @param capacity int messages kept in memory
+     * @param spillPath String file the older messages are appended to, empty for none
+     */
+    public MessageHistory(int capacity, String spillPath) {
+        this.ring = new String[Math.max(1, capacity)];
+        if (!spillPath.isEmpty()) {
+            try {
+                spill = Files.newBufferedWriter(Paths.get(spillPath), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("Can't open the history file " + spillPath + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Add a message, the oldest one is dropped (or spilled) when the ring is full
+     * @param message String
+     */
+    public synchronized void add(String message) {
+        int slot = (int) (count % ring.length);
+        if (count >= ring.length && spill != null) {
+            try {
+                spill.write(ring[slot]);
+                spill.newLine();
+            } catch (IOException e) {
+                System.err.println("Can't write the history file: " + e.getMessage());
+                close();
+            }
+        }
+        ring[slot] = message;
+        count++;
+    }
+
+
+    /**
+     * Get a message relative to the last one
+     * @param i int 0 for the last message, 1 for the one before...
+     * @return String null if not kept in memory
+     */
+    public synchronized String get(int i) {
+        if (i < 0 || i >= ring.length || i >= count) {
+            return null;
+        }
+        return ring[(int) ((count - 1 - i) % ring.length)];
+    }
+
+
+    /**
+     * Get the number of messages kept in memory
+     * @return int
+     */
+    public synchronized int size() {
+        return (int) Math.min(count, ring.length);
+    }
+
+
+    /**
+     * Write the spilled messages to the file and close it
+     */
+    public synchronized void close() {
+        if (spill == null) {
+            return;
+        }
+        try {
+            spill.close();
+        } catch (IOException e) {
+            System.err.println("Can't close the history file: " + e.getMessage());
+        }
+        spill = null;
+    }
+}
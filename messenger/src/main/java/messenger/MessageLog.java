@@ -0,0 +1,800 @@
+package messenger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Helps to log the message sent in server in file
+ * The entries are written by the LogAppender, the sender only queues them.
+ * If the appender loses entries, the log is read back from the disk at its next use,
+ * so the numbers, sizes and index follow what was written. Numbers of lost entries are not reused.
+ *
+ * The log is split in segments of at most messenger.log.segmentSize bytes (default 64 MB),
+ * named after the first message number, in a directory of their own so opening a log only lists
+ * its own files, e.g. messagelog-segments/messagelog-000000000001.txt for messagelog.txt.
+ * Every messenger.log.indexInterval bytes (default 4096) the number, time and offset of a message
+ * go to the sparse index of the segment (messagelog-000000000001.idx), kept in memory too.
+ * The numbers continue across restarts, the last segment is read back on first use.
+ *
+ * The segments are format 2, written in the FORMAT file of the directory. A line is
+ * NUMBER; TIMESTAMP; USERNAME;MESSAGE, with SENDER; RECEIVER for the users of a private message.
+ * Line feeds, carriage returns and backslashes of the message are escaped, so every entry is one line.
+ * Format 1 is the single file before the segments (messagelog.txt itself): the receiver only
+ * for a private message, and a message could go on over several lines.
+ *
+ * A format 1 log is migrated on first use: the entries are numbered again, escaped and staged in
+ * .migrating segments, the old file is kept as messagelog.txt.migrated, then the staged segments
+ * are renamed. A migration cut short is redone or finished at the next start. An empty old log is left alone.
+ *
+ * A query seeks with the index and reads the memory mapped segments from there,
+ * at most MAX_SCAN bytes per page, so it never reads whole files or loads them on the heap.
+ */
+public class MessageLog {
+    private static final long SEGMENT_SIZE = Math.max(4096, Settings.getLong("messenger.log.segmentSize", 64 * 1024 * 1024));
+    private static final int INDEX_INTERVAL = Math.max(64, Settings.getInt("messenger.log.indexInterval", 4096));
+    private static final int MAX_SCAN = 8 * 1024 * 1024;                // Bytes read by a query before it returns a page
+    private static final int SEPARATOR = System.lineSeparator().length();
+    private static final String STAGED = ".migrating";                 // Segments of a migration not finished yet
+    private static final String FORMAT = "2";                          // Format of the segments, in the FORMAT file
+    private static final Pattern LEGACY_ENTRY = Pattern.compile("\\d+; .*");
+    private String logPath = "messagelog.txt";
+    private long sequence = 0;                  // Guarded by this
+    private List<Segment> segments = null;      // Guarded by this, read from the disk on first use
+    private LogAppender appender = LogAppender.getInstance();
+    private final Consumer<IOException> lost = this::lost;
+
+    /*
+     * One segment file and its sparse index, the index grows under the log's lock
+     */
+    private static class Segment {
+        final long first;                       // Number of the first message
+        final Path path;
+        final String indexPath;
+        long size = 0;                          // Bytes queued to the appender
+        long[] numbers = new long[16];
+        long[] times = new long[16];
+        long[] offsets = new long[16];
+        int entries = 0;
+        MappedByteBuffer mapped = null;         // Kept while the file does not grow
+
+        Segment(long first, Path path, String indexPath) {
+            this.first = first;
+            this.path = path;
+            this.indexPath = indexPath;
+        }
+
+        void addIndex(long number, long time, long offset) {
+            if (entries == numbers.length) {
+                numbers = Arrays.copyOf(numbers, entries * 2);
+                times = Arrays.copyOf(times, entries * 2);
+                offsets = Arrays.copyOf(offsets, entries * 2);
+            }
+            numbers[entries] = number;
+            times[entries] = time;
+            offsets[entries] = offset;
+            entries++;
+        }
+
+        /**
+         * Find the offset to read from for a message number or a time
+         * @param from long first message number wanted
+         * @param since long first time wanted, -1 for any
+         * @return long offset of an indexed message before the wanted ones
+         */
+        long seek(long from, long since) {
+            int low = 0;
+            int high = entries - 1;
+            // The last entry before the wanted messages
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (numbers[middle] <= from || (since >= 0 && times[middle] < since)) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return entries == 0 ? 0 : offsets[low];
+        }
+    }
+
+    /*
+     * A page of a query
+     */
+    public static class Page {
+        private final List<String> entries;
+        private final long next;
+
+        Page(List<String> entries, long next) {
+            this.entries = entries;
+            this.next = next;
+        }
+
+        /**
+         * Get the entries of the page in order
+         * @return List<String> the log lines
+         */
+        public List<String> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Get the message number the next page starts from
+         * @return long 0 when the log has no more messages
+         */
+        public long getNext() {
+            return next;
+        }
+    }
+
+
+    /**
+     * Get the log file path
+     * @return String
+     */
+    public String getLogPath() {
+        return logPath;
+    }
+
+
+    /**
+     * Set the log file's path, the segments are named after it
+     * @param logPath
+     */
+    public synchronized void setLogPath(String logPath) {
+        this.logPath = logPath;
+        this.segments = null;
+        this.sequence = 0;
+    }
+
+
+    /**
+     * Log ta message to the logfile
+     * The sequence numbers are given in the order the entries are queued
+     * @param msg Message
+     */
+    public void logMessage(Message msg) {
+        String entry = entry(msg);
+        // The bytes the appender writes, a lone surrogate is encoded as one '?'
+        long length = entry.getBytes(StandardCharsets.UTF_8).length + 2 + SEPARATOR;
+        synchronized (this) {
+            open();
+            sequence++;
+            long bytes = length + Long.toString(sequence).length();
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || (segment.size > 0 && segment.size + bytes > SEGMENT_SIZE)) {
+                segment = newSegment(sequence);
+                segments.add(segment);
+            }
+            if (segment.entries == 0 || segment.size - segment.offsets[segment.entries - 1] >= INDEX_INTERVAL) {
+                segment.addIndex(sequence, msg.getTime(), segment.size);
+                appender.append(segment.indexPath, sequence + " " + msg.getTime() + " " + segment.size, lost);
+            }
+            appender.append(segment.path.toString(), sequence + "; " + entry, lost);
+            segment.size += bytes;
+        }
+    }
+
+
+    /**
+     * The appender lost entries of the log: read the segments back from the disk at the next use
+     * @param e IOException
+     */
+    private synchronized void lost(IOException e) {
+        ConsoleLog.warn("Entries of the message log " + logPath + " were lost, it is read again: " + e.getMessage());
+        segments = null;
+    }
+
+
+    /**
+     * Format a message as a log entry
+     * @param msg Message
+     * @return String TIMESTAMP; USERNAME;MESSAGE or TIMESTAMP; SENDER; RECEIVER;MESSAGE, the message escaped
+     */
+    private static String entry(Message msg) {
+        String users = msg.getSender() == null ? msg.getUsername() : msg.getSender() + "; " + msg.getUsername();
+        return msg.getTimestamp() + "; " + users + ";" + escape(msg.getMessage());
+    }
+
+
+    /**
+     * Convert an entry of a log written before the segments, the sender of a private message was not logged
+     * @param timestamp String
+     * @param username String the receiver
+     * @param message String with its line feeds
+     * @return String TIMESTAMP; ; RECEIVER;MESSAGE
+     */
+    String upgrade(String timestamp, String username, String message) {
+        return timestamp + "; ; " + username + ";" + escape(message);
+    }
+
+
+    /**
+     * Get the number of user fields of an entry, before the message
+     * @return int SENDER and RECEIVER
+     */
+    int userFields() {
+        return 2;
+    }
+
+
+    /**
+     * Get an entry as shown to the users, the line breaks of its message back
+     * @param entry String an entry of the log
+     * @return String
+     */
+    public String display(String entry) {
+        // Skip the number, the time and the users, which are not escaped
+        int separator = -2;
+        for (int i = 0; i < userFields() + 1 && separator != -1; i++) {
+            separator = entry.indexOf("; ", separator + 2);
+        }
+        int message = separator < 0 ? -1 : entry.indexOf(';', separator + 2);
+        return message < 0 ? unescape(entry) : entry.substring(0, message + 1) + unescape(entry.substring(message + 1));
+    }
+
+
+    /**
+     * Get the number of an entry
+     * @param entry String NUMBER; ...
+     * @return long 0 if it has none
+     */
+    public static long numberOf(String entry) {
+        long number = 0;
+        for (int i = 0; i < entry.length() && entry.charAt(i) >= '0' && entry.charAt(i) <= '9'; i++) {
+            number = number * 10 + (entry.charAt(i) - '0');
+        }
+        return number;
+    }
+
+
+    /**
+     * Escape the line feeds, carriage returns and backslashes of a message
+     * @param message String
+     * @return String without line breaks
+     */
+    static String escape(String message) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            String replacement = c == '\\' ? "\\\\" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(message.length() + 16).append(message, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped == null ? message : escaped.toString();
+    }
+
+
+    /**
+     * Undo escape()
+     * @param message String
+     * @return String with its line breaks
+     */
+    static String unescape(String message) {
+        if (message.indexOf('\\') < 0) {
+            return message;
+        }
+        StringBuilder unescaped = new StringBuilder(message.length());
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\\' && i + 1 < message.length()) {
+                char next = message.charAt(++i);
+                unescaped.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+
+    /**
+     * Read a page of the log
+     * @param from long first message number wanted, 1 for the start of the log
+     * @param since long first time wanted in epoch milliseconds, -1 for any
+     * @param limit int max entries in the page
+     * @param filter Predicate<String> the entries wanted
+     * @return Page
+     * @throws IOException
+     */
+    public Page read(long from, long since, int limit, Predicate<String> filter) throws IOException {
+        List<Segment> candidates;
+        long offset;
+        long last;
+        synchronized (this) {
+            open();
+            last = sequence;
+            int i = segments.size() - 1;
+            // The last segment that starts before the wanted messages
+            while (i > 0 && segments.get(i).first > from && (since < 0 || segments.get(i).times[0] >= since)) {
+                i--;
+            }
+            if (i < 0) {
+                return new Page(Collections.emptyList(), 0);
+            }
+            candidates = new ArrayList<>(segments.subList(i, segments.size()));
+            offset = candidates.get(0).seek(from, since);
+        }
+
+        List<String> entries = new ArrayList<>();
+        long scanned = 0;
+        boolean reached = since < 0;
+        for (Segment segment : candidates) {
+            ByteBuffer data = map(segment);
+            int position = (int) Math.min(offset, data.limit());
+            offset = 0;
+            while (position < data.limit()) {
+                int end = position;
+                while (end < data.limit() && data.get(end) != '\n') {
+                    end++;
+                }
+                if (end == data.limit()) {
+                    break;      // Being written
+                }
+                long number = parseNumber(data, position);
+                scanned += end + 1 - position;
+                if (number >= from) {
+                    String line = decode(data, position, end);
+                    // The times grow with the numbers, only the first lines are compared
+                    reached = reached || timeOf(line) >= since;
+                    if (reached && filter.test(line)) {
+                        entries.add(line);
+                    }
+                    if (entries.size() == limit || scanned >= MAX_SCAN) {
+                        return new Page(entries, number < last ? number + 1 : 0);
+                    }
+                }
+                position = end + 1;
+            }
+        }
+        return new Page(entries, 0);
+    }
+
+
+    /**
+     * Test if an entry of the private message log is between two users, either way
+     * @param entry String NUMBER; TIMESTAMP; SENDER; RECEIVER;MESSAGE
+     * @param user String
+     * @param other String
+     * @return boolean
+     */
+    public static boolean isBetween(String entry, String user, String other) {
+        // The fields before the message, which may hold anything
+        int time = entry.indexOf("; ");
+        int sender = time < 0 ? -1 : entry.indexOf("; ", time + 2);
+        int receiver = sender < 0 ? -1 : entry.indexOf("; ", sender + 2);
+        int message = receiver < 0 ? -1 : entry.indexOf(';', receiver + 2);
+        if (message < 0) {
+            return false;
+        }
+        String from = entry.substring(sender + 2, receiver);
+        String to = entry.substring(receiver + 2, message);
+        return (from.equals(user) && to.equals(other)) || (from.equals(other) && to.equals(user));
+    }
+
+
+    /**
+     * Map a segment file as far as it is written
+     * @param segment Segment
+     * @return ByteBuffer a view of the mapping
+     * @throws IOException
+     */
+    private static ByteBuffer map(Segment segment) throws IOException {
+        synchronized (segment) {
+            if (!Files.exists(segment.path)) {
+                // The appender has not written its first line yet
+                return ByteBuffer.allocate(0);
+            }
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                long size = Math.min(channel.size(), Integer.MAX_VALUE);
+                if (segment.mapped == null || segment.mapped.capacity() != size) {
+                    segment.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+            return segment.mapped.duplicate();
+        }
+    }
+
+
+    /**
+     * Read the segments of the log on first use, the numbers continue after the last message
+     */
+    private void open() {
+        if (segments != null) {
+            return;
+        }
+        segments = new ArrayList<>();
+        Path base = Paths.get(logPath).toAbsolutePath();
+        String name = base.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot < 0 ? name : name.substring(0, dot);
+        String extension = dot < 0 ? "" : name.substring(dot);
+        Pattern pattern = Pattern.compile(Pattern.quote(stem) + "-(\\d{12,})" + Pattern.quote(extension) + "(" + Pattern.quote(STAGED) + ")?");
+        try {
+            Path directory = directory();
+            checkFormat(directory);
+            List<Path> staged = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Matcher matcher = pattern.matcher(file.getFileName().toString());
+                    if (matcher.matches() && matcher.group(2) != null) {
+                        staged.add(file);
+                    } else if (matcher.matches()) {
+                        segments.add(newSegment(Long.parseLong(matcher.group(1))));
+                    }
+                }
+            }
+            if (Files.exists(base) && Files.size(base) > 0) {
+                // The old log is still there, a staged migration was cut short
+                for (Path file : staged) {
+                    Files.delete(file);
+                }
+                if (segments.isEmpty()) {
+                    migrate(base);
+                } else {
+                    ConsoleLog.warn("The message log " + logPath + " is not migrated, " + stem + "-*" + extension + " segments already exist");
+                }
+            } else {
+                // The old log was set aside, finish renaming the staged segments
+                for (Path file : staged) {
+                    String staging = file.getFileName().toString();
+                    Files.move(file, file.resolveSibling(staging.substring(0, staging.length() - STAGED.length())));
+                    Matcher matcher = pattern.matcher(staging);
+                    matcher.matches();
+                    segments.add(newSegment(Long.parseLong(matcher.group(1))));
+                }
+            }
+            segments.sort((a, b) -> Long.compare(a.first, b.first));
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                loadIndex(segment);
+                segment.size = Files.size(segment.path);
+                if (segment.entries == 0 || i == segments.size() - 1) {
+                    recover(segment);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            ConsoleLog.error("Can't read the message log " + logPath, e);
+        }
+        // Segments that could not be read are left out
+        segments.removeIf(segment -> segment.entries == 0);
+        for (Segment segment : segments) {
+            sequence = Math.max(sequence, segment.first - 1);
+        }
+    }
+
+
+    /**
+     * Get the directory of the segments, next to the log file
+     * @return Path e.g. messagelog-segments for messagelog.txt
+     */
+    private Path directory() {
+        Path base = Paths.get(logPath).toAbsolutePath();
+        String name = base.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return base.resolveSibling((dot < 0 ? name : name.substring(0, dot)) + "-segments");
+    }
+
+
+    /**
+     * Create the directory of the segments with its FORMAT file, or check the format of an existing one
+     * @param directory Path
+     * @throws IOException
+     */
+    private void checkFormat(Path directory) throws IOException {
+        Path format = directory.resolve("FORMAT");
+        if (!Files.exists(format)) {
+            Files.createDirectories(directory);
+            Files.write(format, (FORMAT + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        String version = new String(Files.readAllBytes(format), StandardCharsets.UTF_8).trim();
+        if (!version.equals(FORMAT)) {
+            throw new IOException("The segments of " + logPath + " are format " + version + ", this version reads format " + FORMAT);
+        }
+    }
+
+
+    /**
+     * Move a log written before the segments into segments. They are staged and synced first,
+     * the old file is set aside as the commit point, then the staged segments are renamed.
+     * @param legacy Path the old log file
+     * @throws IOException
+     */
+    private void migrate(Path legacy) throws IOException {
+        List<Segment> migrated = new ArrayList<>();
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        long number = 0;
+        long size = 0;
+        FileOutputStream file = null;
+        OutputStream out = null;
+        // Decoding replaces malformed bytes instead of failing the migration
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(legacy), StandardCharsets.UTF_8))) {
+            String entry = reader.readLine();
+            while (entry != null) {
+                // The message of an entry goes on until the next numbered line
+                StringBuilder lines = new StringBuilder(entry);
+                String line;
+                while ((line = reader.readLine()) != null && !LEGACY_ENTRY.matcher(line).matches()) {
+                    lines.append('\n').append(line);
+                }
+                byte[] bytes = (++number + "; " + convert(lines.toString())).getBytes(StandardCharsets.UTF_8);
+                if (out == null || size + bytes.length + separator.length > SEGMENT_SIZE) {
+                    if (out != null) {
+                        out.flush();
+                        file.getFD().sync();
+                        out.close();
+                    }
+                    Segment segment = newSegment(number);
+                    migrated.add(segment);
+                    file = new FileOutputStream(segment.path + STAGED);
+                    out = new BufferedOutputStream(file, 64 * 1024);
+                    size = 0;
+                }
+                out.write(bytes);
+                out.write(separator);
+                size += bytes.length + separator.length;
+                entry = line;
+            }
+            if (out != null) {
+                out.flush();
+                file.getFD().sync();
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        Files.move(legacy, legacy.resolveSibling(legacy.getFileName() + ".migrated"));
+        for (Segment segment : migrated) {
+            Files.move(Paths.get(segment.path + STAGED), segment.path);
+        }
+        segments.addAll(migrated);
+        ConsoleLog.info("Migrated " + number + " messages of " + logPath + " to " + migrated.size() + " segments, the old log is kept as " + logPath + ".migrated");
+    }
+
+
+    /**
+     * Convert an entry of a log written before the segments
+     * @param entry String NUMBER; TIMESTAMP; USERNAME;MESSAGE, the message may hold line feeds
+     * @return String the entry without its number
+     */
+    private String convert(String entry) {
+        int time = entry.indexOf("; ");
+        int user = time < 0 ? -1 : entry.indexOf("; ", time + 2);
+        int message = user < 0 ? -1 : entry.indexOf(';', user + 2);
+        if (message < 0 || entry.lastIndexOf('\n', message) >= 0) {
+            return escape(time < 0 ? entry : entry.substring(time + 2));
+        }
+        return upgrade(entry.substring(time + 2, user), entry.substring(user + 2, message), entry.substring(message + 1));
+    }
+
+
+    /**
+     * Get the segment of a log starting at a message number
+     * @param first long
+     * @return Segment
+     */
+    private Segment newSegment(long first) {
+        Path directory = directory();
+        String name = Paths.get(logPath).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = (dot < 0 ? name : name.substring(0, dot)) + String.format("-%012d", first);
+        Path path = directory.resolve(stem + (dot < 0 ? "" : name.substring(dot)));
+        return new Segment(first, path, directory.resolve(stem + ".idx").toString());
+    }
+
+
+    /**
+     * Read the index file of a segment
+     * @param segment Segment
+     * @throws IOException
+     */
+    private static void loadIndex(Segment segment) throws IOException {
+        Path index = Paths.get(segment.indexPath);
+        if (!Files.exists(index)) {
+            return;
+        }
+        for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ");
+            if (fields.length == 3) {
+                segment.addIndex(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            }
+        }
+    }
+
+
+    /**
+     * Read a segment from its last indexed message to the end: index what the index file missed,
+     * find the last message number and drop a line cut by a crash.
+     * An index line is queued before its message, after a crash it may point at or past the end,
+     * and after lost entries at another line: such entries are dropped and the index file is written again.
+     * @param segment Segment
+     * @throws IOException
+     */
+    private void recover(Segment segment) throws IOException {
+        ByteBuffer data = map(segment);
+        boolean stale = checkIndex(segment, data);
+        int position;
+        int kept;
+        do {
+            position = segment.entries == 0 ? 0 : (int) segment.offsets[segment.entries - 1];
+            long indexed = segment.entries == 0 ? -INDEX_INTERVAL : segment.offsets[segment.entries - 1];
+            kept = segment.entries;
+            while (position < data.limit()) {
+                int end = position;
+                while (end < data.limit() && data.get(end) != '\n') {
+                    end++;
+                }
+                if (end == data.limit()) {
+                    break;
+                }
+                long number = parseNumber(data, position);
+                sequence = Math.max(sequence, number);
+                if (position - indexed >= INDEX_INTERVAL) {
+                    segment.addIndex(number, timeOf(decode(data, position, end)), position);
+                    indexed = position;
+                }
+                position = end + 1;
+            }
+            // The last indexed line itself was cut, read again from the entry before
+        } while (dropIndex(segment, position) && (stale = true));
+        if (position < segment.size) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+                channel.truncate(position);
+            }
+            segment.size = position;
+            segment.mapped = null;
+        }
+        if (stale) {
+            writeIndex(segment);
+        } else {
+            for (int i = kept; i < segment.entries; i++) {
+                appender.append(segment.indexPath, segment.numbers[i] + " " + segment.times[i] + " " + segment.offsets[i], lost);
+            }
+        }
+    }
+
+
+    /**
+     * Drop the index entries that do not point at the start of their line
+     * @param segment Segment
+     * @param data ByteBuffer the segment
+     * @return boolean whether any was dropped
+     */
+    private static boolean checkIndex(Segment segment, ByteBuffer data) {
+        int kept = 0;
+        for (int i = 0; i < segment.entries; i++) {
+            long offset = segment.offsets[i];
+            if (offset < data.limit() && (offset == 0 || data.get((int) offset - 1) == '\n')
+                    && parseNumber(data, (int) offset) == segment.numbers[i]) {
+                segment.numbers[kept] = segment.numbers[i];
+                segment.times[kept] = segment.times[i];
+                segment.offsets[kept] = offset;
+                kept++;
+            }
+        }
+        boolean dropped = kept < segment.entries;
+        segment.entries = kept;
+        return dropped;
+    }
+
+
+    /**
+     * Drop the index entries at or past the end of a segment
+     * @param segment Segment
+     * @param size long bytes of complete lines
+     * @return boolean whether any was dropped
+     */
+    private static boolean dropIndex(Segment segment, long size) {
+        int entries = segment.entries;
+        while (segment.entries > 0 && segment.offsets[segment.entries - 1] >= size) {
+            segment.entries--;
+        }
+        return segment.entries < entries;
+    }
+
+
+    /**
+     * Write the index file of a segment again with the entries in memory
+     * @param segment Segment
+     * @throws IOException
+     */
+    private static void writeIndex(Segment segment) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < segment.entries; i++) {
+            lines.append(segment.numbers[i]).append(' ').append(segment.times[i]).append(' ').append(segment.offsets[i]).append(System.lineSeparator());
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        // Truncated in place, the appender may append to the file
+        try (FileChannel channel = FileChannel.open(Paths.get(segment.indexPath), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+    }
+
+
+    /**
+     * Parse the message number at the start of a line
+     * @param data ByteBuffer
+     * @param position int start of the line
+     * @return long
+     */
+    private static long parseNumber(ByteBuffer data, int position) {
+        long number = 0;
+        for (int i = position; i < data.limit(); i++) {
+            byte b = data.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            number = number * 10 + (b - '0');
+        }
+        return number;
+    }
+
+
+    /**
+     * Decode a line of a segment
+     * @param data ByteBuffer
+     * @param start int
+     * @param end int offset of the line feed
+     * @return String without the line separator
+     */
+    private static String decode(ByteBuffer data, int start, int end) {
+        if (end > start && data.get(end - 1) == '\r') {
+            end--;
+        }
+        byte[] bytes = new byte[end - start];
+        ByteBuffer line = data.duplicate();
+        line.position(start);
+        line.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Get the time of an entry
+     * @param entry String NUMBER; TIMESTAMP; ...
+     * @return long epoch milliseconds, -1 if it can't be read
+     */
+    private static long timeOf(String entry) {
+        int start = entry.indexOf("; ");
+        int end = start < 0 ? -1 : entry.indexOf("; ", start + 2);
+        try {
+            return end < 0 ? -1 : Timestamps.parse(entry.subSequence(start + 2, end));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package messenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * helps to send and receive message between server and client
+ * Encapsulate the dataInputStream and the output stream and provide more features
+ * Messages are queued in a bounded OutboundQueue and written by the messenger's own writer,
+ * so sending never waits for a slow reader. Several queued messages go out in one write and flush.
+ * The format is legacy writeUTF until the peers negotiate frames (see FrameCodec).
+ */
+public class Messenger implements Contact {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static volatile Executor writers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "messenger-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private Socket socket = null;
+    private DataInputStream dataInputStream = null;
+    private OutputStream outputStream = null;
+    private final OutboundQueue<byte[]> pending = OutboundQueue.fromSettings();
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private volatile boolean disconnected = false;
+    private volatile boolean readFramed = false;
+    private volatile boolean writeFramed = false;
+    private volatile Thread owner = null;
+
+
+    /**
+     * Constructor for messengers that are not backed by socket streams
+     */
+    protected Messenger() {
+    }
+
+
+    /**
+     * Messenger object constructor
+     * Opens an input and an output stream
+     * @param socket TCP socket
+     */
+    public Messenger(Socket socket) {
+        this.socket = socket;
+        try {
+            dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            outputStream = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        } catch (IOException e) {
+            ConsoleLog.error("Can't open the streams of " + socket.getRemoteSocketAddress(), e);
+        }
+    }
+
+
+    /**
+     * Set where the writers of all messengers run, e.g. on virtual threads
+     * @param executor Executor
+     */
+    public static void setWriterExecutor(Executor executor) {
+        writers = executor;
+    }
+
+
+    /**
+     * Ask the peer to switch to frames. Used by the client right after connecting.
+     * @throws IOException
+     */
+    public void requestFraming() throws IOException {
+        enqueue(FrameCodec.encodeLegacy(FrameCodec.HELLO), true, null);
+        writeFramed = true;
+        flush();
+    }
+
+
+    /**
+     * Messages sent by the calling thread are queued until it reads the next message,
+     * so a reply and the following prompt are written together
+     */
+    public void flushOnRead() {
+        owner = Thread.currentThread();
+    }
+
+
+    /**
+     * Read a message from input stream and cast to String
+     * Writes the queued messages first. Handles the framing negotiation.
+     * @return String
+     * @throws IOException
+     */
+    public String readMessage() throws IOException {
+        flush();
+        while (true) {
+            String message = readFramed ? FrameCodec.readFrame(dataInputStream) : dataInputStream.readUTF();
+            if (readFramed) {
+                return message;
+            } else if (message.equals(FrameCodec.HELLO)) {
+                // The peer switches to frames, confirm in the legacy format and switch as well
+                readFramed = true;
+                enqueue(FrameCodec.encodeLegacy(FrameCodec.HELLO_ACK), true, null);
+                writeFramed = true;
+                flush();
+            } else if (message.equals(FrameCodec.HELLO_ACK)) {
+                readFramed = true;
+            } else {
+                return message;
+            }
+        }
+    }
+
+
+    /**
+     * Send a message with given String msg and then wait for reply
+     * @param msg String message
+     * @return String
+     * @throws IOException
+     */
+    public String readMessage(String msg) throws IOException {
+        sendMessage(msg);
+        return readMessage();
+    }
+
+
+    /**
+     * Test if there is any bytes to be read
+     * @return boolean
+     * @throws IOException
+     */
+    public boolean isEmpty() throws IOException {
+        if (dataInputStream.available() > 0) {
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Send a Message, it is queued and written by the messenger's writer
+     * @param message String message
+     * @throws IOException
+     */
+    public void sendMessage(String message) throws IOException {
+        enqueue(writeFramed ? FrameCodec.encodeFrame(message) : FrameCodec.encodeLegacy(message), true, null);
+        if (Thread.currentThread() != owner) {
+            flush();
+        }
+    }
+
+
+    /**
+     * Send a Message without waiting for space in the queue, a full queue drops it with the BLOCK policy
+     * @param message String message
+     * @throws IOException
+     */
+    public void offerMessage(String message) throws IOException {
+        enqueue(writeFramed ? FrameCodec.encodeFrame(message) : FrameCodec.encodeLegacy(message), false, null);
+        if (Thread.currentThread() != owner) {
+            flush();
+        }
+    }
+
+
+    /**
+     * Send a Message and learn when the writer has written and flushed it, without waiting for room
+     * @param message String message
+     * @return CompletableFuture<Void> failed if the message is dropped or the connection closes first
+     * @throws IOException
+     */
+    public CompletableFuture<Void> sendConfirmed(String message) throws IOException {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        enqueue(writeFramed ? FrameCodec.encodeFrame(message) : FrameCodec.encodeLegacy(message), false, written);
+        flush();
+        return written;
+    }
+
+
+    /**
+     * Queue an encoded message, disconnect the reader if the overflow policy says so
+     * @param message byte[] encoded message
+     * @param mayBlock boolean whether to wait for space with the BLOCK policy
+     * @param confirmation CompletableFuture<Void> completed once written, null if not needed
+     * @throws IOException if the connection is closed
+     */
+    private void enqueue(byte[] message, boolean mayBlock, CompletableFuture<Void> confirmation) throws IOException {
+        if (disconnected) {
+            throw new IOException("Connection closed");
+        }
+        boolean queued = confirmation == null ? pending.offer(message, mayBlock) : pending.offer(message, mayBlock, confirmation);
+        if (!queued) {
+            ConsoleLog.warn("===== Disconnect slow reader " + (socket == null ? "" : socket.getRemoteSocketAddress()));
+            disconnect();
+        } else if (confirmation != null && disconnected) {
+            // Disconnected meanwhile, the clear may have run before the offer
+            pending.clear();
+        }
+    }
+
+
+    /**
+     * Let the writer write the queued messages
+     */
+    public void flush() {
+        if (!pending.isEmpty() && writing.compareAndSet(false, true)) {
+            writers.execute(this::drain);
+        }
+    }
+
+
+    /**
+     * Write every queued message with one flush, until nothing is queued. Runs on the writer.
+     */
+    private void drain() {
+        List<byte[]> confirmed = new ArrayList<>();
+        try {
+            while (true) {
+                byte[] message;
+                while ((message = pending.poll()) != null) {
+                    outputStream.write(message);
+                    Metrics.addOutboundBytes(message.length);
+                    if (pending.hasConfirmations()) {
+                        confirmed.add(message);
+                    }
+                }
+                outputStream.flush();
+                // Written only once flushed out of the buffer
+                for (byte[] written : confirmed) {
+                    pending.written(written);
+                }
+                confirmed.clear();
+                writing.set(false);
+                // Messages queued after the last poll() have not scheduled a writer
+                if (pending.isEmpty() || !writing.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+
+    /**
+     * Get the number of messages waiting to be written
+     * @return int
+     */
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+
+    /**
+     * Get the number of messages dropped because the queue was full
+     * @return long
+     */
+    public long getDropped() {
+        return pending.getDropped();
+    }
+
+
+    /**
+     * Test if the connection was closed because of a write failure or a full queue
+     * @return boolean
+     */
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+
+    /**
+     * Drop the queued messages and close the socket, the reader will fail with an IOException
+     */
+    public void disconnect() {
+        disconnected = true;
+        pending.clear();
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            ConsoleLog.warn("Can't close the socket of " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Close the input and output stream
+     */
+    public void close() {
+        try {
+            if (outputStream != null) {
+                outputStream.close();
+            }
+            if (dataInputStream != null) {
+                dataInputStream.close();
+            }
+        } catch (IOException e) {
+            ConsoleLog.warn("Can't close the streams: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Check if input and output stream are disconnected
+     * @throws IOException
+     */
+    public void healthCheck() throws IOException {
+        assert dataInputStream != null;
+        assert outputStream != null;
+    }
+}
@@ -0,0 +1,334 @@
+package messenger;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms of the server, cheap enough to always record.
+ *  - per command: count, errors and latency of the dispatch
+ *  - gauges: connections, active users, groups, outbound bytes, the log append latency
+ *    and the dropped console lines
+ *  - group mailboxes: queued tasks, the deepest mailbox seen, the refused tasks
+ *    and how long a task waited in its mailbox
+ * Readable with the /stats command of an admin (messenger.admins) and as JMX MBeans
+ * under messenger:type=Server and messenger:type=Command,name=ACTION.
+ */
+public class Metrics {
+    private static final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final LongAdder outboundBytes = new LongAdder();
+    private static final LatencyHistogram logAppendLatency = new LatencyHistogram();
+    private static final LatencyHistogram mailboxWait = new LatencyHistogram();
+    private static volatile LongSupplier activeUsers = () -> 0;
+    private static volatile LongSupplier groups = () -> 0;
+    private static volatile LongSupplier mailboxDepth = () -> 0;
+    private static volatile LongSupplier mailboxMaxDepth = () -> 0;
+    private static volatile LongSupplier mailboxRejected = () -> 0;
+    private static volatile MBeanServer mbeanServer = null;
+
+    /*
+     * Statistics of one command, read through JMX
+     */
+    public interface CommandStatsMXBean {
+        long getCount();
+        long getErrors();
+        double getMeanMicros();
+        long getP50Micros();
+        long getP99Micros();
+        long getP999Micros();
+        long getMaxMicros();
+    }
+
+    /*
+     * Gauges of the server, read through JMX
+     */
+    public interface ServerStatsMXBean {
+        int getConnections();
+        long getActiveUsers();
+        long getGroups();
+        long getOutboundBytes();
+        long getLogAppendP50Micros();
+        long getLogAppendP99Micros();
+        long getLogAppendMaxMicros();
+        long getConsoleDropped();
+        long getGroupMailboxDepth();
+        long getGroupMailboxMaxDepth();
+        long getGroupMailboxRejected();
+        long getGroupMailboxWaitP50Micros();
+        long getGroupMailboxWaitP99Micros();
+    }
+
+    /*
+     * Counters of one command
+     */
+    public static class CommandStats implements CommandStatsMXBean {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * Record a dispatch of the command
+         * @param nanos long how long the handler took
+         * @param failed boolean whether the command was refused or failed
+         */
+        public void record(long nanos, boolean failed) {
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            latency.record(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public double getMeanMicros() {
+            return latency.getMean() / 1000;
+        }
+
+        public long getP50Micros() {
+            return micros(latency.getValueAtPercentile(50));
+        }
+
+        public long getP99Micros() {
+            return micros(latency.getValueAtPercentile(99));
+        }
+
+        public long getP999Micros() {
+            return micros(latency.getValueAtPercentile(99.9));
+        }
+
+        public long getMaxMicros() {
+            return micros(latency.getMax());
+        }
+    }
+
+    /*
+     * The gauges as an MBean
+     */
+    private static class ServerStats implements ServerStatsMXBean {
+        public int getConnections() {
+            return connections.get();
+        }
+
+        public long getActiveUsers() {
+            return activeUsers.getAsLong();
+        }
+
+        public long getGroups() {
+            return groups.getAsLong();
+        }
+
+        public long getOutboundBytes() {
+            return outboundBytes.sum();
+        }
+
+        public long getLogAppendP50Micros() {
+            return micros(logAppendLatency.getValueAtPercentile(50));
+        }
+
+        public long getLogAppendP99Micros() {
+            return micros(logAppendLatency.getValueAtPercentile(99));
+        }
+
+        public long getLogAppendMaxMicros() {
+            return micros(logAppendLatency.getMax());
+        }
+
+        public long getConsoleDropped() {
+            return ConsoleLog.getDropped();
+        }
+
+        public long getGroupMailboxDepth() {
+            return mailboxDepth.getAsLong();
+        }
+
+        public long getGroupMailboxMaxDepth() {
+            return mailboxMaxDepth.getAsLong();
+        }
+
+        public long getGroupMailboxRejected() {
+            return mailboxRejected.getAsLong();
+        }
+
+        public long getGroupMailboxWaitP50Micros() {
+            return micros(mailboxWait.getValueAtPercentile(50));
+        }
+
+        public long getGroupMailboxWaitP99Micros() {
+            return micros(mailboxWait.getValueAtPercentile(99));
+        }
+    }
+
+
+    /**
+     * Convert nanoseconds to microseconds
+     * @param nanos long
+     * @return long
+     */
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+
+    /**
+     * Get the statistics of a command, created on first use
+     * Only call with known actions, every action stays in memory.
+     * @param action String e.g. /msgto
+     * @return CommandStats
+     */
+    public static CommandStats command(String action) {
+        CommandStats stats = commands.get(action);
+        if (stats != null) {
+            return stats;
+        }
+        return commands.computeIfAbsent(action, a -> {
+            CommandStats created = new CommandStats();
+            registerMBean(created, "messenger:type=Command,name=" + ObjectName.quote(a));
+            return created;
+        });
+    }
+
+
+    /**
+     * Count a new connection
+     */
+    public static void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+
+    /**
+     * Count a closed connection
+     */
+    public static void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+
+    /**
+     * Count the bytes written to the clients
+     * @param bytes long
+     */
+    public static void addOutboundBytes(long bytes) {
+        outboundBytes.add(bytes);
+    }
+
+
+    /**
+     * Record how long a log entry waited until it was written
+     * @param nanos long
+     */
+    public static void recordLogAppend(long nanos) {
+        logAppendLatency.record(nanos);
+    }
+
+
+    /**
+     * Record how long a group task waited in its mailbox
+     * @param nanos long
+     */
+    public static void recordMailboxWait(long nanos) {
+        mailboxWait.record(nanos);
+    }
+
+
+    /**
+     * Set where the user and group gauges are read from
+     * @param activeUsers LongSupplier number of logged in users
+     * @param groups LongSupplier number of groups
+     */
+    public static void setGauges(LongSupplier activeUsers, LongSupplier groups) {
+        Metrics.activeUsers = activeUsers;
+        Metrics.groups = groups;
+    }
+
+
+    /**
+     * Set where the group mailbox gauges are read from
+     * @param depth LongSupplier tasks waiting in all the mailboxes
+     * @param maxDepth LongSupplier most tasks a mailbox held at once
+     * @param rejected LongSupplier tasks refused by a full mailbox
+     */
+    public static void setMailboxGauges(LongSupplier depth, LongSupplier maxDepth, LongSupplier rejected) {
+        Metrics.mailboxDepth = depth;
+        Metrics.mailboxMaxDepth = maxDepth;
+        Metrics.mailboxRejected = rejected;
+    }
+
+
+    /**
+     * Expose the metrics as MBeans of the platform MBean server
+     */
+    public static synchronized void registerMBeans() {
+        if (mbeanServer != null) {
+            return;
+        }
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        registerMBean(new ServerStats(), "messenger:type=Server");
+        for (Map.Entry<String, CommandStats> entry : commands.entrySet()) {
+            registerMBean(entry.getValue(), "messenger:type=Command,name=" + ObjectName.quote(entry.getKey()));
+        }
+    }
+
+
+    /**
+     * Register an MBean if MBeans are exposed
+     * @param mbean Object
+     * @param name String the object name
+     */
+    private static void registerMBean(Object mbean, String name) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (JMException e) {
+            ConsoleLog.error("Can't register the MBean " + name, e);
+        }
+    }
+
+
+    /**
+     * Render every metric as text, one command per line
+     * @return String
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder(String.format("%-14s %10s %8s %10s %10s %10s %10s",
+            "command", "count", "errors", "p50 us", "p99 us", "p999 us", "max us"));
+        for (Map.Entry<String, CommandStats> entry : new TreeMap<>(commands).entrySet()) {
+            CommandStats stats = entry.getValue();
+            report.append(String.format("\n%-14s %10d %8d %10d %10d %10d %10d", entry.getKey(),
+                stats.getCount(), stats.getErrors(), stats.getP50Micros(), stats.getP99Micros(),
+                stats.getP999Micros(), stats.getMaxMicros()));
+        }
+        ServerStats server = new ServerStats();
+        report.append(String.format("\nconnections %d, active users %d, groups %d, outbound bytes %d",
+            server.getConnections(), server.getActiveUsers(), server.getGroups(), server.getOutboundBytes()));
+        report.append(String.format("\nlog append p50 %d us, p99 %d us, max %d us, console lines dropped %d",
+            server.getLogAppendP50Micros(), server.getLogAppendP99Micros(), server.getLogAppendMaxMicros(),
+            server.getConsoleDropped()));
+        report.append(String.format("\ngroup mailboxes: queued %d, max %d, rejected %d, wait p50 %d us, p99 %d us",
+            server.getGroupMailboxDepth(), server.getGroupMailboxMaxDepth(), server.getGroupMailboxRejected(),
+            server.getGroupMailboxWaitP50Micros(), server.getGroupMailboxWaitP99Micros()));
+        return report.toString();
+    }
+}
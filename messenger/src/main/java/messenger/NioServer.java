@@ -0,0 +1,51 @@
+package messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Selector based server core.
+ * One acceptor hands the accepted channels to N worker reactors in turn,
+ * every reactor serves many clients on one thread.
+ */
+public class NioServer {
+    private final int port;
+    private final Reactor[] reactors;
+
+
+    /**
+     * NioServer constructor
+     * @param port int server port
+     * @param reactorCount int number of worker reactors
+     * @throws IOException
+     */
+    public NioServer(int port, int reactorCount) throws IOException {
+        this.port = port;
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor();
+        }
+    }
+
+
+    /**
+     * Start the reactors and accept connections forever
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            Thread thread = new Thread(reactors[i], "reactor-" + i);
+            thread.start();
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            reactors[next].register(channel);
+            next = (next + 1) % reactors.length;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package messenger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A client connection of the NIO server.
+ * Decodes the incoming messages and walks through the login prompts and commands
+ * as a state machine, the same steps as the blocking ClientThread.
+ * The password is verified on the authenticator threads, the login and the commands run on the
+ * worker threads (messenger.nio.workers, default 4 per core), as they may wait for files.
+ * Meanwhile the channel is not read, the following input waits in the socket.
+ * A message may take at most its largest valid size in the read buffer, a frame claiming more closes the connection.
+ */
+public class NioSession {
+    private enum State { USERNAME, PASSWORD, VERIFYING, UDP_PORT, BLOCKED, COMMAND }
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final ExecutorService workers = Executors.newFixedThreadPool(
+        Settings.getInt("messenger.nio.workers", 4 * Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "nio-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "nio-unblock-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final SocketChannel channel;
+    private final ChannelMessenger messenger;
+    private final Reactor reactor;
+    private final Server.Session session;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private State state;
+    private String userName;
+    private boolean framed = false;
+    private boolean closed = false;
+    private boolean working = false;        // A step runs on a worker
+
+    /*
+     * A step of the session that may block, runs on a worker
+     */
+    @FunctionalInterface
+    private interface Step {
+        void run() throws IOException;
+    }
+
+
+    /**
+     * NioSession constructor
+     * @param channel SocketChannel the client channel
+     * @param messenger ChannelMessenger replies to the client
+     * @param reactor Reactor the owning reactor
+     */
+    NioSession(SocketChannel channel, ChannelMessenger messenger, Reactor reactor) {
+        this.channel = channel;
+        this.messenger = messenger;
+        this.reactor = reactor;
+        String clientID = "(" + channel.socket().getInetAddress().getHostAddress() + ", " + channel.socket().getPort() + ")";
+        this.session = new Server.Session(clientID, messenger);
+    }
+
+
+    /**
+     * Get the messenger of this connection
+     * @return ChannelMessenger
+     */
+    ChannelMessenger getMessenger() {
+        return messenger;
+    }
+
+
+    /**
+     * Greet the new connection with the first prompt
+     * @throws IOException
+     */
+    void start() throws IOException {
+        Server.broadcast("===== New connection created for user - " + session.getClientID());
+        if (session.isBlocked()) {
+            block();
+        } else {
+            promptUsername();
+        }
+    }
+
+
+    /**
+     * Read what is available and handle every complete message
+     */
+    void onReadable() {
+        try {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException();
+            }
+            handleInput();
+        } catch (EOFException e) {
+            if (state == State.COMMAND) {
+                // Logout, let the client read the goodbye
+                closed = true;
+                disconnectSession();
+                messenger.closeWhenFlushed();
+            } else {
+                close();
+            }
+        } catch (IOException | RuntimeException e) {
+            ConsoleLog.error("===== Connection error, user - " + session.getClientID(), e);
+            close();
+        }
+    }
+
+
+    /**
+     * Handle every complete message in the read buffer, stops while the password is verified
+     * @throws IOException
+     */
+    private void handleInput() throws IOException {
+        readBuffer.flip();
+        String message;
+        while (!closed && !working && state != State.VERIFYING && (message = decode()) != null) {
+            if (!framed && message.equals(FrameCodec.HELLO)) {
+                framed = true;
+                messenger.acceptFraming();
+            } else {
+                onMessage(message);
+            }
+        }
+        readBuffer.compact();
+        if (readBuffer.position() == 0 && readBuffer.capacity() > BUFFER_SIZE) {
+            // The large message is handled, give the memory back
+            readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        } else if (!readBuffer.hasRemaining()) {
+            // A message larger than the buffer, never more than the largest valid one
+            int max = framed ? FrameCodec.HEADER_SIZE + FrameCodec.MAX_BODY : 2 + FrameCodec.MAX_LEGACY;
+            if (readBuffer.capacity() >= max) {
+                throw new IOException("Message larger than " + max + " bytes");
+            }
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.min((long) readBuffer.capacity() * 2, max));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        messenger.setReading(!working && state != State.VERIFYING);
+    }
+
+
+    /**
+     * The password has been verified, runs on the reactor thread
+     * @param verified boolean
+     */
+    private void onVerified(boolean verified) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (session.verified(verified)) {
+                // Tell the client to send the UDP port number
+                messenger.sendMessage("LOGIN_SUCCEEDED");
+                state = State.UDP_PORT;
+            } else if (session.isBlocked()) {
+                block();
+            } else {
+                promptUsername();
+            }
+            handleInput();
+        } catch (IOException | RuntimeException e) {
+            ConsoleLog.error("===== Connection error, user - " + session.getClientID(), e);
+            close();
+        }
+    }
+
+
+    /**
+     * Run a step that may block on a worker, the input is handled again once it is done
+     * @param step Step
+     */
+    private void work(Step step) {
+        working = true;
+        workers.execute(() -> {
+            Exception failure = null;
+            try {
+                step.run();
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            Exception error = failure;
+            reactor.execute(() -> worked(error));
+        });
+    }
+
+
+    /**
+     * A step is done, runs on the reactor thread
+     * @param error Exception null if the step succeeded
+     */
+    private void worked(Exception error) {
+        working = false;
+        if (closed) {
+            // Closed meanwhile, the session was left to the step
+            session.disconnect();
+            return;
+        }
+        if (error instanceof EOFException) {
+            // Logout, let the client read the goodbye
+            closed = true;
+            session.disconnect();
+            messenger.closeWhenFlushed();
+            return;
+        } else if (error != null) {
+            ConsoleLog.error("===== Connection error, user - " + session.getClientID(), error);
+            close();
+            return;
+        }
+        try {
+            messenger.sendMessage(Server.Session.MENU);
+            state = State.COMMAND;
+            handleInput();
+        } catch (IOException | RuntimeException e) {
+            ConsoleLog.error("===== Connection error, user - " + session.getClientID(), e);
+            close();
+        }
+    }
+
+
+    /**
+     * Close the connection
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        disconnectSession();
+        messenger.close();
+    }
+
+
+    /**
+     * Log the user out, or let the running step do it once it is done
+     */
+    private void disconnectSession() {
+        if (!working) {
+            session.disconnect();
+        }
+    }
+
+
+    /**
+     * Decode one message in the negotiated format
+     * @return String the message, null if not complete yet
+     * @throws IOException
+     */
+    private String decode() throws IOException {
+        return framed ? FrameCodec.decodeFrame(readBuffer) : FrameCodec.decodeLegacy(readBuffer);
+    }
+
+
+    /**
+     * Move the state machine with the received message
+     * @param message String
+     * @throws IOException
+     */
+    private void onMessage(String message) throws IOException {
+        switch (state) {
+            case USERNAME:
+                userName = message;
+                messenger.sendMessage("Please enter password:");
+                state = State.PASSWORD;
+                break;
+            case PASSWORD:
+                state = State.VERIFYING;
+                session.verify(userName, message).whenComplete(
+                    (verified, error) -> reactor.execute(() -> onVerified(Boolean.TRUE.equals(verified))));
+                break;
+            case VERIFYING:
+                break;
+            case UDP_PORT:
+                work(() -> session.login(userName, message));
+                break;
+            case BLOCKED:
+                messenger.sendMessage("Please try again later.");
+                break;
+            case COMMAND:
+                work(() -> session.dispatch(message));
+                break;
+        }
+    }
+
+
+    /**
+     * Ask for the username
+     * @throws IOException
+     */
+    private void promptUsername() throws IOException {
+        messenger.sendMessage("Please enter username:");
+        state = State.USERNAME;
+    }
+
+
+    /**
+     * Block the client and prompt again when the block expires
+     */
+    private void block() {
+        state = State.BLOCKED;
+        timer.schedule(() -> reactor.execute(this::unblock), session.blockedFor(), TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * The block has expired, runs on the reactor thread
+     */
+    private void unblock() {
+        if (closed || state != State.BLOCKED) {
+            return;
+        }
+        try {
+            promptUsername();
+        } catch (IOException e) {
+            close();
+        }
+    }
+}
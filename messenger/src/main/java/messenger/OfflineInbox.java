@@ -0,0 +1,609 @@
+package messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The /msgto messages to users that are not logged in, delivered when they log in.
+ * The messages are appended to one segment file (inbox.dat), the heap only holds the
+ * offset index: the offsets of every user's waiting messages, in order.
+ * Records of the segment file:
+ *  - MESSAGE: type, recipient, text
+ *  - DELIVERED: type, recipient, offset; every message of the recipient up to the offset was delivered
+ * The index is rebuilt by reading the file on startup, a record cut by a crash is dropped.
+ *
+ * At login the waiting messages are read from the file in batches on the delivery thread
+ * and sent to the user, messenger.inbox.batch (default 64) messages per server message and at most
+ * what a legacy connection carries (FrameCodec.MAX_LEGACY bytes). A message longer than that is sent
+ * alone, split in parts. The batches are offered without waiting for room in the user's queue.
+ * A batch is marked delivered only once the connection's writer has written it, the next batch
+ * is read then. A batch dropped by the overflow policy is sent again after RETRY_DELAY, up to
+ * MAX_RETRIES times, one cut by a disconnect at the next login.
+ * One delivery runs per user, a login meanwhile hands it the new connection.
+ * A batch is marked by its number of messages, not by file offsets a compaction may move.
+ * A compactor task rewrites the file with only the waiting messages once the delivered ones
+ * take most of it, every messenger.inbox.compactInterval milliseconds (default 60000).
+ * It copies the messages without the lock, only the ones stored meanwhile are copied under it.
+ * Thread safe.
+ */
+public class OfflineInbox {
+    private static final byte MESSAGE = 1;
+    private static final byte DELIVERED = 2;
+    private static final long MIN_COMPACT = 1024 * 1024;    // Bytes of delivered messages worth a rewrite
+    private static final int MAX_BATCH = FrameCodec.MAX_LEGACY;
+    private static final long RETRY_DELAY = 200;            // Milliseconds before a dropped batch is sent again
+    private static final int MAX_RETRIES = 50;
+    private static final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "inbox-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    // One thread reads the batches, a user's next batch is read once the previous one was written
+    private static final ScheduledExecutorService deliverer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "inbox-delivery");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Path path;
+    private final int batchSize;
+    private final Map<String, Offsets> index = new HashMap<>();    // Guarded by this
+    private FileChannel segment;                                   // Guarded by this
+    private long liveBytes = 0;                                    // Guarded by this, waiting messages
+    private final Map<String, Contact> delivering = new HashMap<>();  // Guarded by this, user to its latest connection
+    private final Object compaction = new Object();                  // One compaction at a time
+
+    /*
+     * The offsets of one user's waiting messages, a queue of longs
+     */
+    private static class Offsets {
+        long[] items = new long[4];
+        int head = 0;
+        int tail = 0;
+
+        void add(long offset) {
+            if (tail == items.length) {
+                // Reuse the room of the delivered offsets before growing
+                items = head > items.length / 2 ? Arrays.copyOfRange(items, head, head + items.length) : Arrays.copyOf(items, items.length * 2);
+                tail -= head;
+                head = 0;
+            }
+            items[tail++] = offset;
+        }
+
+        int size() {
+            return tail - head;
+        }
+    }
+
+
+    /**
+     * OfflineInbox constructor from the settings, in inbox.dat
+     */
+    public OfflineInbox() {
+        this(Settings.getString("messenger.inbox.path", "inbox.dat"), Settings.getInt("messenger.inbox.batch", 64));
+        long interval = Settings.getLong("messenger.inbox.compactInterval", 60000);
+        compactor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * OfflineInbox constructor, reads the waiting messages of an existing file
+     * @param path String the segment file
+     * @param batchSize int messages per server message at delivery
+     */
+    public OfflineInbox(String path, int batchSize) {
+        this.path = Paths.get(path);
+        this.batchSize = Math.max(1, batchSize);
+        try {
+            segment = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+        } catch (IOException e) {
+            ConsoleLog.error("Can't open the offline inbox " + path, e);
+        }
+    }
+
+
+    /**
+     * Rebuild the index from the segment file, drop a record cut by a crash
+     * @throws IOException
+     */
+    private synchronized void load() throws IOException {
+        long size = segment.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(1 + 2);
+        while (position < size) {
+            header.clear();
+            if (!readFully(header, position)) {
+                break;
+            }
+            byte type = header.get(0);
+            int userLength = header.getShort(1) & 0xFFFF;
+            ByteBuffer rest = ByteBuffer.allocate(userLength + (type == MESSAGE ? 4 : 8));
+            if ((type != MESSAGE && type != DELIVERED) || !readFully(rest, position + 3)) {
+                break;
+            }
+            String user = new String(rest.array(), 0, userLength, StandardCharsets.UTF_8);
+            long length = 3 + rest.capacity();
+            if (type == MESSAGE) {
+                length += rest.getInt(userLength);
+                if (position + length > size) {
+                    break;
+                }
+                index.computeIfAbsent(user, k -> new Offsets()).add(position);
+                liveBytes += length;
+            } else {
+                markDelivered(user, rest.getLong(userLength));
+            }
+            position += length;
+        }
+        if (position < size) {
+            ConsoleLog.warn("Offline inbox: dropped " + (size - position) + " bytes of a cut record");
+            segment.truncate(position);
+        }
+    }
+
+
+    /**
+     * Read from the segment file until the buffer is full
+     * @param buffer ByteBuffer
+     * @param position long
+     * @return boolean false at the end of the file
+     * @throws IOException
+     */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        return readFully(segment, buffer, position);
+    }
+
+
+    /**
+     * Read from a segment file until the buffer is full
+     * @param channel FileChannel
+     * @param buffer ByteBuffer
+     * @param position long
+     * @return boolean false at the end of the file
+     * @throws IOException
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Write a record at the end of the segment file
+     * @param record ByteBuffer ready to write
+     * @return long the offset of the record
+     * @throws IOException
+     */
+    private long append(ByteBuffer record) throws IOException {
+        long offset = segment.size();
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += segment.write(record, position);
+        }
+        return offset;
+    }
+
+
+    /**
+     * Keep a message for a user that is not logged in
+     * @param recipient String
+     * @param text String the message as the user would have received it
+     * @throws IOException when the message can't be written
+     */
+    public synchronized void store(String recipient, String text) throws IOException {
+        if (segment == null) {
+            throw new IOException("the offline inbox is not available");
+        }
+        byte[] user = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + user.length + 4 + body.length);
+        record.put(MESSAGE).putShort((short) user.length).put(user).putInt(body.length).put(body);
+        record.flip();
+        int length = record.remaining();
+        index.computeIfAbsent(recipient, k -> new Offsets()).add(append(record));
+        liveBytes += length;
+    }
+
+
+    /**
+     * Get the number of messages waiting for a user
+     * @param recipient String
+     * @return int
+     */
+    public synchronized int getWaiting(String recipient) {
+        Offsets offsets = index.get(recipient);
+        return offsets == null ? 0 : offsets.size();
+    }
+
+
+    /**
+     * Send the waiting messages of a user who logged in, on the delivery thread
+     * @param recipient String
+     * @param messenger Contact of the user
+     */
+    public void deliver(String recipient, Contact messenger) {
+        synchronized (this) {
+            if (getWaiting(recipient) == 0) {
+                return;
+            }
+            // A running delivery goes on with the latest connection
+            if (delivering.put(recipient, messenger) != null) {
+                return;
+            }
+        }
+        deliverer.execute(() -> send(recipient, messenger, true, 0));
+    }
+
+
+    /**
+     * Send the next batch of a user's waiting messages, the following one once it is written.
+     * Runs on the delivery thread.
+     * @param recipient String
+     * @param messenger Contact of the user the batch goes to
+     * @param first boolean whether it is the first batch on this connection
+     * @param retries int times this batch was dropped already
+     */
+    private void send(String recipient, Contact messenger, boolean first, int retries) {
+        List<String> parts = new ArrayList<>();
+        int count = 0;
+        synchronized (this) {
+            Contact latest = delivering.get(recipient);
+            if (latest != messenger) {
+                // Logged in again, go on with the new connection
+                deliverer.execute(() -> send(recipient, latest, true, 0));
+                return;
+            }
+            String header = first ? "Messages received while offline (" + getWaiting(recipient) + "):\n" : "";
+            try {
+                count = readBatch(recipient, header, parts);
+            } catch (IOException e) {
+                ConsoleLog.error("Offline inbox: can't read the messages of " + recipient, e);
+            }
+            if (count == 0 || messenger.isDisconnected()) {
+                delivering.remove(recipient);
+                return;
+            }
+        }
+        int delivered = count;
+        try {
+            CompletableFuture<?>[] written = new CompletableFuture<?>[parts.size()];
+            for (int i = 0; i < parts.size(); i++) {
+                written[i] = messenger.sendConfirmed(parts.get(i));
+            }
+            CompletableFuture.allOf(written).whenCompleteAsync((done, error) -> {
+                if (error != null) {
+                    failed(recipient, messenger, first, retries, error);
+                    return;
+                }
+                try {
+                    delivered(recipient, delivered);
+                } catch (IOException e) {
+                    ConsoleLog.error("Offline inbox: can't mark the messages of " + recipient + " delivered", e);
+                }
+                send(recipient, messenger, false, 0);
+            }, deliverer);
+        } catch (IOException e) {
+            failed(recipient, messenger, first, retries, e);
+        }
+    }
+
+
+    /**
+     * A batch was not written. Dropped by the overflow policy of a connection still open, it is sent
+     * again a bit later. Otherwise its messages stay for the next login unless the user is connected again.
+     * @param recipient String
+     * @param messenger Contact the batch went to
+     * @param first boolean whether it was the first batch on this connection
+     * @param retries int times the batch was dropped before
+     * @param error Throwable why
+     */
+    private void failed(String recipient, Contact messenger, boolean first, int retries, Throwable error) {
+        if (!messenger.isDisconnected() && retries < MAX_RETRIES) {
+            deliverer.schedule(() -> send(recipient, messenger, first, retries + 1), RETRY_DELAY, TimeUnit.MILLISECONDS);
+            return;
+        }
+        ConsoleLog.warn("Offline inbox: a batch to " + recipient + " was not delivered, " + error.getMessage());
+        Contact latest;
+        synchronized (this) {
+            latest = delivering.get(recipient);
+            if (latest == messenger) {
+                delivering.remove(recipient);
+                return;
+            }
+        }
+        deliverer.execute(() -> send(recipient, latest, true, 0));
+    }
+
+
+    /**
+     * Read the next batch of a user's waiting messages into the server messages to send:
+     * up to batchSize messages in one server message of at most MAX_BATCH bytes,
+     * or a single longer message split in parts
+     * @param recipient String
+     * @param header String the text before the first message
+     * @param parts List<String> filled with the server messages
+     * @return int the number of messages in the batch
+     * @throws IOException
+     */
+    private synchronized int readBatch(String recipient, String header, List<String> parts) throws IOException {
+        Offsets offsets = index.get(recipient);
+        if (offsets == null || segment == null) {
+            return 0;
+        }
+        StringBuilder text = new StringBuilder(header);
+        int length = FrameCodec.legacyLength(header);
+        int count = 0;
+        for (int i = offsets.head; i < offsets.tail && count < batchSize; i++) {
+            String message = readMessage(segment, offsets.items[i]);
+            int added = FrameCodec.legacyLength(message) + (count > 0 ? 1 : 0);
+            if (length + added > MAX_BATCH) {
+                if (count == 0) {
+                    split(text.append(message), parts);
+                    return 1;
+                }
+                break;
+            }
+            if (count > 0) {
+                text.append('\n');
+            }
+            text.append(message);
+            length += added;
+            count++;
+        }
+        parts.add(text.toString());
+        return count;
+    }
+
+
+    /**
+     * Split a text longer than MAX_BATCH in parts, never between the two chars of a surrogate pair
+     * @param text CharSequence
+     * @param parts List<String> the parts are added to
+     */
+    private static void split(CharSequence text, List<String> parts) {
+        int start = 0;
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int bytes = FrameCodec.legacyLength(text.subSequence(i, i + 1));
+            boolean pair = Character.isHighSurrogate(text.charAt(i)) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1));
+            if (length + bytes + (pair ? 3 : 0) > MAX_BATCH) {
+                parts.add(text.subSequence(start, i).toString());
+                start = i;
+                length = 0;
+            }
+            length += bytes;
+        }
+        parts.add(text.subSequence(start, text.length()).toString());
+    }
+
+
+    /**
+     * Read the text of a MESSAGE record
+     * @param channel FileChannel
+     * @param offset long
+     * @return String
+     * @throws IOException
+     */
+    private static String readMessage(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(1 + 2);
+        readFully(channel, header, offset);
+        int userLength = header.getShort(1) & 0xFFFF;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset + 3 + userLength);
+        ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+        readFully(channel, body, offset + 3 + userLength + 4);
+        return new String(body.array(), StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Record that the first messages of a user were delivered.
+     * By count: they are still the first ones, only the delivery of the user removes messages
+     * and a compaction keeps the order, but it may have moved them in the file.
+     * @param recipient String
+     * @param count int messages delivered
+     * @throws IOException
+     */
+    private synchronized void delivered(String recipient, int count) throws IOException {
+        Offsets offsets = index.get(recipient);
+        if (offsets == null || count <= 0) {
+            return;
+        }
+        // Where the last one is now
+        long offset = offsets.items[offsets.head + Math.min(count, offsets.size()) - 1];
+        byte[] user = recipient.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + user.length + 8);
+        record.put(DELIVERED).putShort((short) user.length).put(user).putLong(offset);
+        record.flip();
+        append(record);
+        markDelivered(recipient, offset);
+    }
+
+
+    /**
+     * Drop the delivered messages of a user from the index
+     * @param recipient String
+     * @param offset long every message up to it was delivered
+     * @throws IOException
+     */
+    private void markDelivered(String recipient, long offset) throws IOException {
+        Offsets offsets = index.get(recipient);
+        if (offsets == null) {
+            return;
+        }
+        while (offsets.size() > 0 && offsets.items[offsets.head] <= offset) {
+            liveBytes -= recordLength(offsets.items[offsets.head]);
+            offsets.head++;
+        }
+        if (offsets.size() == 0) {
+            index.remove(recipient);
+        }
+    }
+
+
+    /**
+     * Get the length of a MESSAGE record
+     * @param offset long
+     * @return long bytes
+     * @throws IOException
+     */
+    private long recordLength(long offset) throws IOException {
+        return recordLength(segment, offset);
+    }
+
+
+    /**
+     * Get the length of a MESSAGE record of a segment file
+     * @param channel FileChannel
+     * @param offset long
+     * @return long bytes
+     * @throws IOException
+     */
+    private static long recordLength(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(1 + 2);
+        readFully(channel, header, offset);
+        int userLength = header.getShort(1) & 0xFFFF;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset + 3 + userLength);
+        return 3 + userLength + 4 + length.getInt(0);
+    }
+
+
+    /**
+     * Rewrite the segment file with only the waiting messages when the delivered ones take most of it.
+     * Runs periodically on the compactor thread.
+     * The waiting messages are copied without the lock, store() and the deliveries go on meanwhile.
+     * Under the lock the messages stored since are copied too, and a DELIVERED record is added for
+     * the users whose copied messages were delivered since, then the new file replaces the old one.
+     */
+    public void compact() {
+        synchronized (compaction) {
+            FileChannel source;
+            long end;
+            long dead;
+            Map<String, long[]> copied = new HashMap<>();
+            synchronized (this) {
+                if (segment == null) {
+                    return;
+                }
+                try {
+                    end = segment.size();
+                } catch (IOException e) {
+                    ConsoleLog.error("Offline inbox compaction failed", e);
+                    return;
+                }
+                dead = end - liveBytes;
+                if (dead < MIN_COMPACT || dead < liveBytes) {
+                    return;
+                }
+                source = segment;
+                for (Map.Entry<String, Offsets> user : index.entrySet()) {
+                    Offsets offsets = user.getValue();
+                    copied.put(user.getKey(), Arrays.copyOfRange(offsets.items, offsets.head, offsets.tail));
+                }
+            }
+            Path temp = Paths.get(path + ".tmp");
+            try (FileChannel output = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                // Old offset -> new offset, in the order of the user's messages
+                Map<String, long[]> moved = new HashMap<>();
+                for (Map.Entry<String, long[]> user : copied.entrySet()) {
+                    long[] from = user.getValue();
+                    long[] to = new long[from.length];
+                    for (int i = 0; i < from.length; i++) {
+                        to[i] = output.position();
+                        copy(source, from[i], output);
+                    }
+                    moved.put(user.getKey(), to);
+                }
+                synchronized (this) {
+                    Map<String, Offsets> compacted = new HashMap<>();
+                    for (Map.Entry<String, long[]> user : copied.entrySet()) {
+                        long[] from = user.getValue();
+                        long[] to = moved.get(user.getKey());
+                        Offsets offsets = index.get(user.getKey());
+                        // Only the first messages of a user are delivered, the rest are still in the index
+                        int delivered = 0;
+                        while (delivered < from.length && (offsets == null || offsets.size() == 0 || from[delivered] < offsets.items[offsets.head])) {
+                            delivered++;
+                        }
+                        if (delivered > 0) {
+                            byte[] name = user.getKey().getBytes(StandardCharsets.UTF_8);
+                            ByteBuffer record = ByteBuffer.allocate(1 + 2 + name.length + 8);
+                            record.put(DELIVERED).putShort((short) name.length).put(name).putLong(to[delivered - 1]);
+                            record.flip();
+                            while (record.hasRemaining()) {
+                                output.write(record);
+                            }
+                        }
+                        if (delivered < from.length) {
+                            Offsets kept = new Offsets();
+                            for (int i = delivered; i < from.length; i++) {
+                                kept.add(to[i]);
+                            }
+                            compacted.put(user.getKey(), kept);
+                        }
+                    }
+                    // The messages stored since the copy started
+                    for (Map.Entry<String, Offsets> user : index.entrySet()) {
+                        Offsets offsets = user.getValue();
+                        for (int i = offsets.head; i < offsets.tail; i++) {
+                            if (offsets.items[i] >= end) {
+                                compacted.computeIfAbsent(user.getKey(), k -> new Offsets()).add(output.position());
+                                copy(source, offsets.items[i], output);
+                            }
+                        }
+                    }
+                    output.force(false);
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    segment = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    source.close();
+                    index.clear();
+                    index.putAll(compacted);
+                    // The waiting messages are the same records, liveBytes does not change
+                }
+                ConsoleLog.info("Offline inbox compacted, " + dead + " bytes of delivered messages dropped");
+            } catch (IOException e) {
+                ConsoleLog.error("Offline inbox compaction failed", e);
+            }
+        }
+    }
+
+
+    /**
+     * Copy a MESSAGE record to the end of another file
+     * @param source FileChannel
+     * @param offset long of the record
+     * @param output FileChannel
+     * @throws IOException
+     */
+    private static void copy(FileChannel source, long offset, FileChannel output) throws IOException {
+        long length = recordLength(source, offset);
+        long copied = 0;
+        while (copied < length) {
+            copied += source.transferTo(offset + copied, length - copied, output);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package messenger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bounded queue of the messages waiting to be written to one connection.
+ * Senders only enqueue, the connection's own writer drains it.
+ * When it is full the overflow policy decides:
+ *  - DROP_OLDEST: drop the oldest queued message
+ *  - DISCONNECT: the consumer is too slow, disconnect it
+ *  - BLOCK: wait for space up to the timeout, then drop the new message
+ * A sender that must know whether a message reached the connection (e.g. the offline inbox)
+ * offers it with a confirmation: completed when the writer reports it written, failed when
+ * the message is dropped or the queue is cleared on disconnect.
+ */
+public class OutboundQueue<E> {
+    public enum OverflowPolicy { DROP_OLDEST, DISCONNECT, BLOCK }
+
+    private final LinkedBlockingQueue<E> queue;
+    private final OverflowPolicy policy;
+    private final long blockTimeout;
+    private final AtomicLong dropped = new AtomicLong();
+    // By identity, only the messages offered with a confirmation
+    private final Map<E, CompletableFuture<Void>> confirmations = Collections.synchronizedMap(new IdentityHashMap<>());
+
+
+    /**
+     * OutboundQueue constructor
+     * @param capacity int max queued messages
+     * @param policy OverflowPolicy what to do when full
+     * @param blockTimeout long milliseconds to wait with the BLOCK policy
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeout) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockTimeout = blockTimeout;
+    }
+
+
+    /**
+     * Create a queue with the messenger.outbound.* settings
+     * @return OutboundQueue
+     */
+    public static <E> OutboundQueue<E> fromSettings() {
+        return new OutboundQueue<>(
+            Settings.getInt("messenger.outbound.capacity", 1024),
+            Settings.getEnum("messenger.outbound.policy", OverflowPolicy.BLOCK),
+            Settings.getLong("messenger.outbound.timeout", 1000));
+    }
+
+
+    /**
+     * Queue a message, applying the overflow policy when full
+     * @param message E
+     * @param mayBlock boolean false if the caller must not wait (e.g. a reactor thread)
+     * @return boolean false if the consumer has to be disconnected
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public boolean offer(E message, boolean mayBlock) throws InterruptedIOException {
+        if (queue.offer(message)) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    E oldest = queue.poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                return true;
+            case DISCONNECT:
+                drop(message);
+                return false;
+            default:
+                try {
+                    if (!mayBlock || !queue.offer(message, blockTimeout, TimeUnit.MILLISECONDS)) {
+                        drop(message);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                return true;
+        }
+    }
+
+
+    /**
+     * Queue a message and learn when it is written, applying the overflow policy when full
+     * @param message E a message no other offer holds, confirmations are by identity
+     * @param mayBlock boolean false if the caller must not wait (e.g. a reactor thread)
+     * @param confirmation CompletableFuture<Void> completed by written(message), failed if the message is dropped
+     * @return boolean false if the consumer has to be disconnected
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public boolean offer(E message, boolean mayBlock, CompletableFuture<Void> confirmation) throws InterruptedIOException {
+        confirmations.put(message, confirmation);
+        try {
+            return offer(message, mayBlock);
+        } catch (InterruptedIOException e) {
+            fail(message, "interrupted");
+            throw e;
+        }
+    }
+
+
+    /**
+     * The writer wrote a message to the connection, completes its confirmation if any
+     * @param message E
+     */
+    public void written(E message) {
+        if (confirmations.isEmpty()) {
+            return;
+        }
+        CompletableFuture<Void> confirmation = confirmations.remove(message);
+        if (confirmation != null) {
+            confirmation.complete(null);
+        }
+    }
+
+
+    /**
+     * Test if a message waits for a confirmation, the writer can skip the bookkeeping of the others
+     * @return boolean
+     */
+    public boolean hasConfirmations() {
+        return !confirmations.isEmpty();
+    }
+
+
+    /**
+     * Count a message dropped by the overflow policy and fail its confirmation
+     * @param message E
+     */
+    private void drop(E message) {
+        dropped.incrementAndGet();
+        fail(message, "dropped, the queue is full");
+    }
+
+
+    /**
+     * Fail the confirmation of a message if any
+     * @param message E
+     * @param reason String
+     */
+    private void fail(E message, String reason) {
+        if (confirmations.isEmpty()) {
+            return;
+        }
+        CompletableFuture<Void> confirmation = confirmations.remove(message);
+        if (confirmation != null) {
+            confirmation.completeExceptionally(new IOException(reason));
+        }
+    }
+
+
+    /**
+     * Remove the oldest message
+     * @return E (null if empty)
+     */
+    public E poll() {
+        return queue.poll();
+    }
+
+
+    /**
+     * Test if nothing is queued
+     * @return boolean
+     */
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+
+    /**
+     * Get the number of queued messages
+     * @return int
+     */
+    public int size() {
+        return queue.size();
+    }
+
+
+    /**
+     * Get the number of messages dropped because the queue was full
+     * @return long
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+
+    /**
+     * Drop every queued message, the connection is closed: fail every confirmation
+     * including the ones of messages the writer took but did not report written
+     */
+    public void clear() {
+        queue.clear();
+        List<CompletableFuture<Void>> failed;
+        synchronized (confirmations) {
+            failed = new ArrayList<>(confirmations.values());
+            confirmations.clear();
+        }
+        for (CompletableFuture<Void> confirmation : failed) {
+            confirmation.completeExceptionally(new IOException("Connection closed"));
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package messenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/*
+ * The UDP side of a client, sends and receives the /p2pvideo files.
+ * One thread receives every datagram and dispatches it by sender address and transfer ID:
+ * the acks go to the file being sent, the other packets to the file being received.
+ * Many files can be received at once:
+ *  - messenger.p2p.transfers (default 8) caps the files received at the same time,
+ *    a START beyond it, or for a file name being received, is answered with BUSY
+ *  - messenger.p2p.memory (default 4 MB) caps the chunks in flight to this client, shared
+ *    between the transfers through the window they advertise
+ * A finished transfer keeps its slot, to answer a FIN again, until the slot is needed.
+ * Only announced transfers are received: the server relays the sender's P2P_OFFER line (see PeerCache)
+ * with its UDP address, the transfer ID and the size. A START from another address or with another
+ * transfer ID is ignored, one larger than announced or than messenger.p2p.maxSize (default 4 GB)
+ * is answered with REFUSED. An announcement is kept for a minute.
+ * The datagrams are received into one reused direct buffer and the acks are built in another.
+ */
+public class P2pEndpoint {
+    static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+    private static final int MAX_TRANSFERS = Math.max(1, Settings.getInt("messenger.p2p.transfers", 8));
+    private static final long MAX_MEMORY = Math.max(P2pPacket.MAX_CHUNK, Settings.getLong("messenger.p2p.memory", SOCKET_BUFFER));
+    private static final int MIN_WINDOW = 2;
+    private static final long MAX_SIZE = Settings.getLong("messenger.p2p.maxSize", 4L * 1024 * 1024 * 1024);
+    private static final long STALE = TimeUnit.SECONDS.toNanos(10);    // A silent transfer is given up
+    private static final long OFFER_TTL = TimeUnit.MINUTES.toNanos(1);
+    private static final int MAX_OFFERS = 64;
+    // Hash the files being sent and received
+    static final ExecutorService digesters = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "p2p-digest");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final DatagramChannel channel;
+    private final Consumer<String> onReceived;
+    private final AtomicReferenceArray<FileSender> senders = new AtomicReferenceArray<>(MAX_TRANSFERS);
+    private final FileReceiver[] receivers = new FileReceiver[MAX_TRANSFERS];  // Receive thread only
+    private final Map<Integer, Offer> offers = new ConcurrentHashMap<>();      // By transfer ID
+
+
+    /*
+     * Tells the receiver to expect a transfer, through the server
+     */
+    @FunctionalInterface
+    public interface Announcer {
+        void announce(int transfer, long size) throws IOException;
+    }
+
+
+    /*
+     * A transfer announced through the server
+     */
+    private static class Offer {
+        final String username;
+        final SocketAddress peer;
+        final long size;
+        final long expires;    // System.nanoTime()
+
+        Offer(String username, SocketAddress peer, long size) {
+            this.username = username;
+            this.peer = peer;
+            this.size = size;
+            this.expires = System.nanoTime() + OFFER_TTL;
+        }
+    }
+
+
+    /**
+     * P2pEndpoint constructor, starts the receive thread
+     * @param channel DatagramChannel bound to the client's UDP port, blocking
+     * @param onReceived Consumer<String> called with the summary of every received file
+     * @throws IOException
+     */
+    public P2pEndpoint(DatagramChannel channel, Consumer<String> onReceived) throws IOException {
+        this.channel = channel;
+        this.onReceived = onReceived;
+        // A burst of the window must not overflow the kernel buffers
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+        Thread thread = new Thread(this::receive, "p2p-receive");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Send a file to a user, returns when the user has the whole file
+     * Several files can be sent at once from different threads.
+     * @param filePath String
+     * @param audience Audience the UDP port and address of the user
+     * @param username String the sender
+     * @param announcer Announcer tells the user to expect the transfer, before it starts
+     * @return String the summary of the transfer
+     * @throws IOException when the file can't be read, the user refuses it or stops answering
+     */
+    public String sendFile(String filePath, Audience audience, String username, Announcer announcer) throws IOException {
+        FileSender transfer = new FileSender(channel, audience, filePath, username);
+        int slot = 0;
+        while (!senders.compareAndSet(slot, null, transfer)) {
+            if (++slot == MAX_TRANSFERS) {
+                throw new IOException("already sending " + MAX_TRANSFERS + " files");
+            }
+        }
+        try {
+            return transfer.send(announcer);
+        } finally {
+            senders.set(slot, null);
+        }
+    }
+
+
+    /**
+     * Expect a transfer announced through the server
+     * At most MAX_OFFERS are kept, the expired ones are dropped first.
+     * @param username String the sender
+     * @param peer SocketAddress the UDP address of the sender
+     * @param transfer int transfer ID
+     * @param size long the size of the file
+     */
+    public void expect(String username, SocketAddress peer, int transfer, long size) {
+        long now = System.nanoTime();
+        offers.values().removeIf(offer -> now - offer.expires >= 0);
+        if (offers.size() >= MAX_OFFERS) {
+            ConsoleLog.warn("Too many files offered, ignored " + username + "'s");
+            return;
+        }
+        offers.put(transfer, new Offer(username, peer, size));
+    }
+
+
+    /**
+     * Handle a message from the server if it announces a transfer
+     * @param message String
+     * @return boolean true if the message was handled
+     */
+    public boolean onMessage(String message) {
+        String[] fields = message.split(" ");
+        if (!fields[0].equals(PeerCache.P2P_OFFER)) {
+            return false;
+        }
+        try {
+            expect(fields[1], new InetSocketAddress(InetAddress.getByName(fields[2]), Integer.parseInt(fields[3])),
+                Integer.parseInt(fields[4]), Long.parseLong(fields[5]));
+        } catch (UnknownHostException | RuntimeException e) {
+            ConsoleLog.debug("Bad offer from the server: " + message);
+        }
+        return true;
+    }
+
+
+    /**
+     * Receive the datagrams until the channel is closed, runs on the receive thread
+     */
+    private void receive() {
+        ByteBuffer packet = ByteBuffer.allocateDirect(P2pPacket.MAX_DATAGRAM);
+        ByteBuffer ack = ByteBuffer.allocateDirect(P2pPacket.MAX_ACK);
+        SocketAddress from = null;
+        while (channel.isOpen()) {
+            try {
+                packet.clear();
+                from = channel.receive(packet);
+                packet.flip();
+                if (packet.remaining() < P2pPacket.HEADER) {
+                    continue;
+                }
+                handle(from, packet, packet.get(), packet.getInt(), ack);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                ConsoleLog.error("UDP receive failed", e);
+            } catch (RuntimeException e) {
+                // A malformed packet
+                ConsoleLog.debug("Bad UDP packet from " + from + ": " + e);
+            }
+        }
+    }
+
+
+    /**
+     * Route a datagram to the transfer it belongs to
+     * @param from SocketAddress the sender of the datagram
+     * @param body ByteBuffer the packet after the header
+     * @param type byte
+     * @param transfer int transfer ID
+     * @param ack ByteBuffer reused buffer for the acks
+     * @throws IOException
+     */
+    private void handle(SocketAddress from, ByteBuffer body, byte type, int transfer, ByteBuffer ack) throws IOException {
+        FileReceiver receiver;
+        switch (type) {
+            case P2pPacket.ACK:
+            case P2pPacket.HAVE:
+            case P2pPacket.FIN_ACK:
+            case P2pPacket.BUSY:
+            case P2pPacket.REFUSED:
+                FileSender sender = findSender(from, transfer);
+                if (sender != null) {
+                    sender.onPacket(body, type);
+                }
+                break;
+            case P2pPacket.START:
+                receiver = findReceiver(from, transfer);
+                if (receiver == null) {
+                    Offer offer = offers.get(transfer);
+                    if (offer == null || !offer.peer.equals(from) || System.nanoTime() - offer.expires >= 0) {
+                        // Not announced (yet), the sender sends START again
+                        ConsoleLog.debug("Unannounced transfer from " + from);
+                        break;
+                    }
+                    FileReceiver incoming = new FileReceiver(from, transfer, body);
+                    if (incoming.getSize() > offer.size || incoming.getSize() > MAX_SIZE || !incoming.getUsername().equals(offer.username)) {
+                        ConsoleLog.warn("Refused " + incoming.getFilename() + " from " + offer.username + ", " + incoming.getSize() + " bytes");
+                        offers.remove(transfer, offer);
+                        channel.send(P2pPacket.control(P2pPacket.REFUSED, transfer), from);
+                        break;
+                    }
+                    receiver = accept(incoming);
+                    if (receiver != null) {
+                        offers.remove(transfer, offer);
+                    }
+                }
+                if (receiver == null) {
+                    channel.send(P2pPacket.control(P2pPacket.BUSY, transfer), from);
+                    break;
+                }
+                // Also when the answer to START was lost
+                for (ByteBuffer reply : receiver.onStart(ack)) {
+                    channel.send(reply, from);
+                }
+                break;
+            case P2pPacket.DATA:
+                receiver = findReceiver(from, transfer);
+                if (receiver != null) {
+                    channel.send(receiver.onData(body, ack), from);
+                }
+                break;
+            case P2pPacket.FIN:
+                receiver = findReceiver(from, transfer);
+                if (receiver != null) {
+                    boolean wasComplete = receiver.isComplete();
+                    ByteBuffer reply = receiver.onFin(body, ack);
+                    if (reply != null) {
+                        channel.send(reply, from);
+                    }
+                    if (!wasComplete && receiver.isComplete()) {
+                        shareMemory();
+                        onReceived.accept(receiver.getSummary());
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Find the file being sent a packet belongs to
+     * @param from SocketAddress
+     * @param transfer int
+     * @return FileSender null if none
+     */
+    private FileSender findSender(SocketAddress from, int transfer) {
+        for (int i = 0; i < MAX_TRANSFERS; i++) {
+            FileSender sender = senders.get(i);
+            if (sender != null && sender.isTransfer(from, transfer)) {
+                return sender;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Find the file being received a packet belongs to
+     * @param from SocketAddress
+     * @param transfer int
+     * @return FileReceiver null if none
+     */
+    private FileReceiver findReceiver(SocketAddress from, int transfer) {
+        for (FileReceiver receiver : receivers) {
+            if (receiver != null && receiver.isTransfer(from, transfer)) {
+                return receiver;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Start receiving an announced file if there is room for it
+     * @param incoming FileReceiver read from the START packet, not opened yet
+     * @return FileReceiver null if refused
+     * @throws IOException when the file can't be created
+     */
+    private FileReceiver accept(FileReceiver incoming) throws IOException {
+        long now = System.nanoTime();
+        int free = -1;
+        for (int i = 0; i < MAX_TRANSFERS; i++) {
+            FileReceiver receiver = receivers[i];
+            if (receiver != null && receiver.isComplete() && free < 0) {
+                receivers[i] = null;
+                receiver = null;
+            } else if (receiver != null && !receiver.isComplete() && now - receiver.getLastPacket() > STALE) {
+                // The sender is gone, the chunks that arrived are kept for a retry
+                ConsoleLog.warn("Gave up receiving " + receiver.getFilename());
+                receiver.abort();
+                receivers[i] = null;
+                receiver = null;
+            }
+            if (receiver == null) {
+                free = free < 0 ? i : free;
+            } else if (!receiver.isComplete() && receiver.getFilename().equals(incoming.getFilename())) {
+                return null;
+            }
+        }
+        if (free < 0) {
+            return null;
+        }
+        incoming.open();
+        receivers[free] = incoming;
+        shareMemory();
+        return incoming;
+    }
+
+
+    /**
+     * Split MAX_MEMORY evenly between the files being received, as chunks in flight
+     */
+    private void shareMemory() {
+        int receiving = 0;
+        for (FileReceiver receiver : receivers) {
+            if (receiver != null && !receiver.isComplete()) {
+                receiving++;
+            }
+        }
+        for (FileReceiver receiver : receivers) {
+            if (receiver != null && !receiver.isComplete()) {
+                long share = MAX_MEMORY / Math.max(1, receiving) / receiver.getChunkSize();
+                receiver.setWindow((int) Math.max(MIN_WINDOW, Math.min(P2pPacket.MAX_SACK_WORDS * 64, share)));
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * The packets of a /p2pvideo transfer, every datagram starts with its type and the transfer ID
+ * chosen by the sender, so a client can take several transfers at once:
+ *  - START: file size, chunk size, modification time, sender and file name. Answered by an ACK
+ *           of chunk 0, or by HAVE packets when the receiver kept chunks of an interrupted transfer
+ *  - HAVE: how many chunks the receiver has and a part of its bitmap of them
+ *  - DATA: chunk number, CRC32C and the bytes of the chunk
+ *  - ACK: the next chunk expected (all before it arrived), how many chunks the sender may have
+ *         in flight (flow control) and a bitmap of the chunks after it that arrived too (selective ack)
+ *  - FIN: every chunk is acked, with the number of retransmitted chunks and the SHA-256 of the file
+ *  - FIN_ACK: the receiver has the whole file and whether it matches the SHA-256
+ *  - BUSY: the receiver takes no more transfers now, answers a START
+ *  - REFUSED: the receiver does not take this file (larger than announced or than its limit), answers a START
+ */
+public class P2pPacket {
+    public static final byte START = 1;
+    public static final byte DATA = 2;
+    public static final byte ACK = 3;
+    public static final byte FIN = 4;
+    public static final byte FIN_ACK = 5;
+    public static final byte BUSY = 6;
+    public static final byte HAVE = 7;
+    public static final byte REFUSED = 8;
+    public static final byte VERIFIED = 0;              // FIN_ACK status
+    public static final byte CORRUPT = 1;
+    public static final int HEADER = 5;                 // Type and transfer ID
+    public static final int DATA_HEADER = HEADER + 8;   // And chunk number and CRC32C
+    public static final int DIGEST_SIZE = 32;           // SHA-256
+    public static final int MAX_HAVE_WORDS = 4096;      // 262144 chunks per HAVE packet
+    public static final int MAX_SACK_WORDS = 16;        // The bitmap covers 1024 chunks
+    public static final int MAX_DATAGRAM = 65507;       // Largest UDP payload
+    public static final int MAX_CHUNK = 60 * 1024;      // Largest chunk, safe on loopback and LAN
+    public static final int MAX_ACK = HEADER + 4 + 4 + 1 + MAX_SACK_WORDS * 8;
+
+
+    /**
+     * Encode a START packet
+     * @param transfer int transfer ID
+     * @param size long file size
+     * @param chunkSize int bytes per chunk
+     * @param modified long modification time of the file, tells if kept chunks are still valid
+     * @param username String sender
+     * @param filename String file name without directories
+     * @return ByteBuffer ready to send
+     */
+    public static ByteBuffer start(int transfer, long size, int chunkSize, long modified, String username, String filename) {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer packet = ByteBuffer.allocate(HEADER + 8 + 4 + 8 + 2 + user.length + 2 + name.length);
+        packet.put(START).putInt(transfer).putLong(size).putInt(chunkSize).putLong(modified);
+        packet.putShort((short) user.length).put(user);
+        packet.putShort((short) name.length).put(name);
+        packet.flip();
+        return packet;
+    }
+
+
+    /**
+     * Encode an ACK packet into a reused buffer
+     * @param packet ByteBuffer of at least MAX_ACK bytes
+     * @param transfer int transfer ID
+     * @param next int the next chunk expected, every chunk before it has arrived
+     * @param window int the chunks the sender may have in flight
+     * @param sack long[] bitmap of the arrived chunks after next (bit i of word w is chunk next + 1 + 64w + i)
+     * @param words int number of bitmap words to send
+     * @return ByteBuffer the packet, ready to send
+     */
+    public static ByteBuffer ack(ByteBuffer packet, int transfer, int next, int window, long[] sack, int words) {
+        packet.clear();
+        packet.put(ACK).putInt(transfer).putInt(next).putInt(window).put((byte) words);
+        for (int i = 0; i < words; i++) {
+            packet.putLong(sack[i]);
+        }
+        packet.flip();
+        return packet;
+    }
+
+
+    /**
+     * Encode a HAVE packet
+     * @param transfer int transfer ID
+     * @param total int number of chunks the receiver has
+     * @param bitmap long[] the bitmap of the chunks (bit i of word w is chunk 64w + i)
+     * @param first int first word to send
+     * @param words int number of words to send, at most MAX_HAVE_WORDS
+     * @return ByteBuffer ready to send
+     */
+    public static ByteBuffer have(int transfer, int total, long[] bitmap, int first, int words) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER + 4 + 4 + 2 + words * 8);
+        packet.put(HAVE).putInt(transfer).putInt(total).putInt(first).putShort((short) words);
+        for (int i = 0; i < words; i++) {
+            packet.putLong(bitmap[first + i]);
+        }
+        packet.flip();
+        return packet;
+    }
+
+
+    /**
+     * Encode a FIN packet
+     * @param transfer int transfer ID
+     * @param retransmits int number of retransmitted chunks
+     * @param digest byte[] SHA-256 of the file
+     * @return ByteBuffer ready to send
+     */
+    public static ByteBuffer fin(int transfer, int retransmits, byte[] digest) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER + 4 + DIGEST_SIZE);
+        packet.put(FIN).putInt(transfer).putInt(retransmits).put(digest);
+        packet.flip();
+        return packet;
+    }
+
+
+    /**
+     * Encode a FIN_ACK packet
+     * @param transfer int transfer ID
+     * @param status byte VERIFIED or CORRUPT
+     * @return ByteBuffer ready to send
+     */
+    public static ByteBuffer finAck(int transfer, byte status) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER + 1);
+        packet.put(FIN_ACK).putInt(transfer).put(status);
+        packet.flip();
+        return packet;
+    }
+
+
+    /**
+     * Encode a packet without body (BUSY, REFUSED)
+     * @param type byte
+     * @param transfer int transfer ID
+     * @return ByteBuffer ready to send
+     */
+    public static ByteBuffer control(byte type, int transfer) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER);
+        packet.put(type).putInt(transfer);
+        packet.flip();
+        return packet;
+    }
+
+
+    /**
+     * Read a length prefixed UTF-8 string
+     * @param packet ByteBuffer positioned at the length
+     * @return String
+     */
+    public static String getString(ByteBuffer packet) {
+        byte[] bytes = new byte[packet.getShort() & 0xFFFF];
+        packet.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,221 @@
+package messenger;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The UDP port and address of the other users, looked up for /p2pvideo.
+ * The client asks the server with "/lookup USER", the server answers one line:
+ *  - PEER USER ADDRESS UDP_PORT TTL_MILLIS when the user is active
+ *  - PEER USER when the user is not active
+ * An answer is cached until its TTL expires, or until the server tells the user logged out
+ * or logged in again with PEER_GONE USER (only to the clients that looked the user up).
+ * Before a transfer the sender announces it with "/offer USER TRANSFER_ID SIZE", the server relays
+ * P2P_OFFER SENDER ADDRESS UDP_PORT TRANSFER_ID SIZE to the user (read by its P2pEndpoint) and answers:
+ *  - OFFERED USER TRANSFER_ID when the offer was relayed
+ *  - OFFERED USER TRANSFER_ID INACTIVE when the user is not active
+ * Shared by the client's input thread (get, lookup, announce) and its server listener thread (onMessage).
+ */
+public class PeerCache {
+    public static final String PEER = "PEER";
+    public static final String PEER_GONE = "PEER_GONE";
+    public static final String P2P_OFFER = "P2P_OFFER";
+    public static final String OFFERED = "OFFERED";
+    private static final String INACTIVE = "INACTIVE";
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Audience>> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<Boolean>> offers = new ConcurrentHashMap<>();  // By transfer ID
+
+    /*
+     * A cached answer
+     */
+    private static class Peer {
+        final Audience audience;
+        final long expires;    // System.nanoTime()
+
+        Peer(Audience audience, long expires) {
+            this.audience = audience;
+            this.expires = expires;
+        }
+    }
+
+
+    /**
+     * Encode the answer to a lookup, on the server
+     * @param username String the user looked up
+     * @param record UserRecord null if the user is not active
+     * @param ttl long milliseconds the client may cache the answer
+     * @return String
+     */
+    public static String reply(String username, UserRecord record, long ttl) {
+        if (record == null) {
+            return PEER + " " + username;
+        }
+        return PEER + " " + username + " " + record.getHost() + " " + record.getUDPport() + " " + ttl;
+    }
+
+
+    /**
+     * Encode the invalidation of a user, on the server
+     * @param username String the user that logged out or in again
+     * @return String
+     */
+    public static String gone(String username) {
+        return PEER_GONE + " " + username;
+    }
+
+
+    /**
+     * Encode the announcement of a transfer to its receiver, on the server
+     * @param sender UserRecord the user sending the file
+     * @param transfer int transfer ID
+     * @param size long the size of the file
+     * @return String
+     */
+    public static String offer(UserRecord sender, int transfer, long size) {
+        return P2P_OFFER + " " + sender.getUsername() + " " + sender.getHost() + " " + sender.getUDPport() + " " + transfer + " " + size;
+    }
+
+
+    /**
+     * Encode the answer to an offer, on the server
+     * @param username String the receiver
+     * @param transfer int transfer ID
+     * @param relayed boolean false if the receiver is not active
+     * @return String
+     */
+    public static String offered(String username, int transfer, boolean relayed) {
+        return OFFERED + " " + username + " " + transfer + (relayed ? "" : " " + INACTIVE);
+    }
+
+
+    /**
+     * Get a cached user
+     * @param username String
+     * @return Audience null if not cached or expired
+     */
+    public Audience get(String username) {
+        Peer peer = peers.get(username);
+        if (peer == null) {
+            return null;
+        }
+        if (System.nanoTime() - peer.expires >= 0) {
+            peers.remove(username, peer);
+            return null;
+        }
+        return peer.audience;
+    }
+
+
+    /**
+     * Ask the server for a user, one request however many threads wait for the same user
+     * A request the server does not answer in time fails and is forgotten, the next lookup asks again.
+     * @param username String
+     * @param messenger Messenger connected to the server
+     * @param timeout long how long to wait for the answer
+     * @param unit TimeUnit of the timeout
+     * @return CompletableFuture<Audience> completed with null if the user is not active,
+     *         failed with a TimeoutException if the server did not answer
+     * @throws IOException
+     */
+    public CompletableFuture<Audience> lookup(String username, Messenger messenger, long timeout, TimeUnit unit) throws IOException {
+        CompletableFuture<Audience> answer = new CompletableFuture<>();
+        CompletableFuture<Audience> asked = pending.putIfAbsent(username, answer);
+        if (asked != null) {
+            return asked;
+        }
+        answer.orTimeout(timeout, unit).whenComplete((audience, e) -> pending.remove(username, answer));
+        try {
+            messenger.sendMessage("/lookup " + username);
+        } catch (IOException e) {
+            pending.remove(username, answer);
+            throw e;
+        }
+        return answer;
+    }
+
+
+    /**
+     * Announce a transfer to a user through the server
+     * @param username String the receiver
+     * @param transfer int transfer ID
+     * @param size long the size of the file
+     * @param messenger Messenger connected to the server
+     * @param timeout long how long to wait for the answer
+     * @param unit TimeUnit of the timeout
+     * @return CompletableFuture<Boolean> completed with false if the user is not active,
+     *         failed with a TimeoutException if the server did not answer
+     * @throws IOException
+     */
+    public CompletableFuture<Boolean> announce(String username, int transfer, long size, Messenger messenger, long timeout, TimeUnit unit) throws IOException {
+        CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        offers.put(transfer, answer);
+        answer.orTimeout(timeout, unit).whenComplete((relayed, e) -> offers.remove(transfer, answer));
+        try {
+            messenger.sendMessage("/offer " + username + " " + transfer + " " + size);
+        } catch (IOException e) {
+            offers.remove(transfer, answer);
+            throw e;
+        }
+        return answer;
+    }
+
+
+    /**
+     * Forget a user, e.g. it did not answer a transfer
+     * @param username String
+     */
+    public void invalidate(String username) {
+        peers.remove(username);
+    }
+
+
+    /**
+     * Handle a message from the server if it is a lookup answer, an invalidation or an offer answer
+     * @param message String
+     * @return boolean true if the message was handled
+     */
+    public boolean onMessage(String message) {
+        String[] fields = message.split(" ");
+        if (fields[0].equals(PEER_GONE) && fields.length == 2) {
+            invalidate(fields[1]);
+            return true;
+        }
+        if (fields[0].equals(OFFERED) && (fields.length == 3 || fields.length == 4)) {
+            try {
+                CompletableFuture<Boolean> answer = offers.remove(Integer.parseInt(fields[2]));
+                if (answer != null) {
+                    answer.complete(fields.length == 3);
+                }
+            } catch (NumberFormatException e) {
+                ConsoleLog.debug("Bad offer answer from the server: " + message);
+            }
+            return true;
+        }
+        if (!fields[0].equals(PEER) || (fields.length != 2 && fields.length != 5)) {
+            return false;
+        }
+        String username = fields[1];
+        Audience audience = null;
+        if (fields.length == 5) {
+            try {
+                audience = new Audience(Integer.parseInt(fields[3]), fields[2]);
+                long expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(fields[4]));
+                peers.put(username, new Peer(audience, expires));
+            } catch (UnknownHostException | NumberFormatException e) {
+                audience = null;
+            }
+        } else {
+            peers.remove(username);
+        }
+        CompletableFuture<Audience> answer = pending.remove(username);
+        if (answer != null) {
+            answer.complete(audience);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,114 @@
+package messenger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * A worker reactor of the NIO server.
+ * Owns one selector and all the channels registered to it, every event and task runs on its thread.
+ */
+public class Reactor implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+
+
+    /**
+     * Reactor constructor, opens the selector
+     * @throws IOException
+     */
+    public Reactor() throws IOException {
+        this.selector = Selector.open();
+    }
+
+
+    /**
+     * Run a task on the reactor thread
+     * @param task Runnable
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+
+    /**
+     * Hand over an accepted channel to this reactor
+     * @param channel SocketChannel accepted channel
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                ChannelMessenger messenger = new ChannelMessenger(channel, this);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                messenger.setKey(key);
+                NioSession session = new NioSession(channel, messenger, this);
+                key.attach(session);
+                session.start();
+            } catch (IOException e) {
+                ConsoleLog.error("===== Can't register a connection", e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Close the connection of the given key
+     * @param key SelectionKey
+     */
+    void closeConnection(SelectionKey key) {
+        NioSession session = (NioSession) key.attachment();
+        if (session != null) {
+            session.close();
+        }
+    }
+
+
+    /**
+     * Select and dispatch ready channels, then run the queued tasks
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        session.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.getMessenger().writeQueued();
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        ConsoleLog.error("===== Reactor task failed", e);
+                    }
+                }
+            } catch (IOException e) {
+                ConsoleLog.error("===== Reactor select failed", e);
+            }
+        }
+    }
+}
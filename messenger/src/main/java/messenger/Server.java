@@ -0,0 +1,948 @@
+package messenger;
+
+import java.lang.reflect.Method;
+import java.net.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.io.*;
+
+/*
+ * The Server
+ */
+public class Server {
+    private static final int BLOCK_DURATION = 10;
+    private static final long BLOCK_POLL_INTERVAL = 50;                 // Milliseconds between checks while blocked
+    private static Integer serverPort;
+    private static Integer MAX_ATTEMPT;
+    private static ServerSocket serverSocket;
+    private static GroupLog groupLog = new GroupLog();                  // Manage groups
+    private static GroupExecutor groupExecutor = new GroupExecutor();   // Runs the group messages, one shard per group
+    private static MessageLog messageLog = new MessageLog();            // Manage messages
+    private static Map<String, Long> blockedUser = new ConcurrentHashMap<>();   // Manage blocked users
+    private static UserLog userLog = new UserLog();                     // Manage users
+    private static Authenticator authenticator = new Authenticator();   // Verify users
+    private static OfflineInbox inbox = new OfflineInbox();             // Messages to users not logged in
+    private static Set<String> admins = new HashSet<>(Arrays.asList(Settings.getString("messenger.admins", "").split(",")));
+    private static final int HISTORY_PAGE = 20;                         // Default entries of a /history page
+    private static final int MAX_HISTORY_PAGE = 500;
+    private static final long LOOKUP_TTL = Settings.getLong("messenger.lookup.ttl", 60000);    // Milliseconds a client caches a lookup
+
+    static {
+        Metrics.setGauges(userLog::getActiveCount, groupLog::getGroupCount);
+        Metrics.setMailboxGauges(groupExecutor::getDepth, groupExecutor::getMaxDepth, groupExecutor::getRejected);
+    }
+
+
+    /**
+     * Add the user address to blocked user dictionary
+     * The duration is 10 seconds
+     * @param address String user address
+     */
+    private static void blockUser(String address) {
+        blockedUser.put(address, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(BLOCK_DURATION));
+    }
+
+
+    /**
+     * Test if a user is currently blocked
+     * @param address String user address
+     * @return boolean
+     */
+    private static boolean isBlocked(String address) {
+        Long unblockTime = blockedUser.get(address);
+        return unblockTime != null && System.currentTimeMillis() < unblockTime;
+    }
+
+
+    /**
+     * Get how long a user is still blocked
+     * @param address String user address
+     * @return long milliseconds until unblocked (0 if not blocked)
+     */
+    private static long blockedFor(String address) {
+        Long unblockTime = blockedUser.get(address);
+        return unblockTime == null ? 0 : Math.max(0, unblockTime - System.currentTimeMillis());
+    }
+
+
+    /**
+     * Log the user's action in server terminal 
+     * @param user String username
+     * @param cmd Command the user's action
+     */
+    private static void issueMsg(String user, Command cmd) {
+        ConsoleLog.info(user + " issued " + cmd.getAction() + " command");
+    }
+
+
+    /**
+     * Broadcast the given message in server terminal
+     * @param msg String message
+     */
+    static void broadcast(String msg) {
+        ConsoleLog.info(msg);
+    }
+
+
+    /**
+     * Log the server's return message in terminal
+     * @param message String return message
+     */
+    private static void returnMsg(String message) {
+        ConsoleLog.info("Return message:\n" + message);
+    }
+
+
+    /*
+     * The state of one connected client and the command handlers.
+     * Shared by the thread-per-connection loop (ClientThread) and the selector based NioSession.
+     */
+    static class Session {
+        static final String MENU = "/msgto /activeuser /creategroup /joingroup /groupmsg /logout /p2pvideo\nPlease enter your command:";
+        private static final Map<String, Handler> handlers = new ConcurrentHashMap<>();    // Action to handler
+        private final String clientID;
+        private final Contact messenger;
+        private boolean clientAlive = false;
+        private String clientName;
+        private int failAttempts = 0;
+        private boolean commandFailed = false;                  // Whether the current command was refused
+        private boolean connected = true;
+
+        /*
+         * Runs one command of a session
+         */
+        @FunctionalInterface
+        interface Handler {
+            void handle(Session session, Command command) throws IOException;
+        }
+
+        static {
+            register("/msgto", Session::msgto);
+            register("/activeuser", Session::activeuser);
+            register("/creategroup", Session::createGroup);
+            register("/joingroup", Session::joinGroup);
+            register("/groupmsg", Session::groupMsg);
+            register("/logout", Session::logout);
+            register("/p2pvideo", (session, command) -> { });    // Handled by the clients over UDP
+            register("/lookup", Session::lookup);
+            register("/offer", Session::offer);
+            register("/history", Session::history);
+            register("/stats", Session::stats);
+        }
+
+
+        /**
+         * Session Constructor
+         * @param clientID String the client address and port
+         * @param messenger Contact used to reply the client
+         */
+        Session(String clientID, Contact messenger) {
+            this.clientID = clientID;
+            this.messenger = messenger;
+            Metrics.connectionOpened();
+        }
+
+
+        /**
+         * Test if the client has logged in
+         * @return boolean
+         */
+        boolean isAlive() {
+            return clientAlive;
+        }
+
+
+        /**
+         * Test if the client is currently blocked
+         * @return boolean
+         */
+        boolean isBlocked() {
+            return Server.isBlocked(clientID);
+        }
+
+
+        /**
+         * Get how long the client is still blocked
+         * @return long milliseconds
+         */
+        long blockedFor() {
+            return Server.blockedFor(clientID);
+        }
+
+
+        /**
+         * Get the client address and port
+         * @return String
+         */
+        String getClientID() {
+            return clientID;
+        }
+
+
+        /**
+         * Verify the username and password on the calling thread.
+         * On fail, tell the client and block it when the max attempts is reached
+         * @param userName String
+         * @param password String
+         * @return boolean
+         * @throws IOException
+         */
+        boolean authenticate(String userName, String password) throws IOException {
+            return verified(authenticator.login(userName, password));
+        }
+
+
+        /**
+         * Verify the username and password on the authenticator threads,
+         * the result must be passed to verified() afterwards
+         * @param userName String
+         * @param password String
+         * @return CompletableFuture<Boolean>
+         */
+        CompletableFuture<Boolean> verify(String userName, String password) {
+            return authenticator.loginAsync(userName, password);
+        }
+
+
+        /**
+         * Handle the result of a verification.
+         * On fail, tell the client and block it when the max attempts is reached
+         * @param verified boolean whether the username and password matched
+         * @return boolean verified
+         * @throws IOException
+         */
+        boolean verified(boolean verified) throws IOException {
+            if (verified) {
+                broadcast("user verified:" + clientID);
+                return true;
+            }
+            failAttempts++;
+            messenger.sendMessage("Wrong username or password");
+            if (failAttempts == MAX_ATTEMPT) {
+                messenger.sendMessage("max attempts reached please wait for 10 seconds");
+                blockUser(clientID);
+                failAttempts = 0;
+            }
+            return false;
+        }
+
+
+        /**
+         * Log the verified user in with the UDP port the client replied
+         * @param userName String
+         * @param UDPport String the client's UDP port number
+         * @throws IOException
+         */
+        void login(String userName, String UDPport) throws IOException {
+            userLog.appendUser(new UserRecord(userName, clientID, Integer.parseInt(UDPport)), messenger);
+            messenger.sendMessage("Welcome " + userName);
+            clientName = userName;
+            clientAlive = true;
+            inbox.deliver(userName, messenger);
+        }
+
+
+        /**
+         * Parse the client's input and run the matching command
+         * @param input String the client's input
+         * @throws IOException
+         * @throws EOFException when the client logout
+         */
+        void dispatch(String input) throws IOException {
+            Command command = new Command(input);
+            Handler handler = handlers.get(command.getAction());
+            // Unknown actions share one entry, the client's input must not grow the metrics
+            Metrics.CommandStats stats = Metrics.command(handler == null ? "invalid" : command.getAction());
+            commandFailed = false;
+            long start = System.nanoTime();
+            try {
+                if (handler == null) {
+                    wrongCommand();
+                } else {
+                    handler.handle(this, command);
+                }
+            } catch (EOFException e) {
+                throw e;    // Logout
+            } catch (IOException | RuntimeException e) {
+                commandFailed = true;
+                throw e;
+            } finally {
+                stats.record(System.nanoTime() - start, commandFailed);
+            }
+        }
+
+
+        /**
+         * Add a command, replaces the handler of an existing command
+         * @param action String the command (e.g.: /msgto)
+         * @param handler Handler
+         */
+        static void register(String action, Handler handler) {
+            handlers.put(action, handler);
+            Metrics.command(action);
+        }
+
+
+        /**
+         * The client has disconnected
+         */
+        void disconnect() {
+            broadcast("===== the user disconnected, user - " + clientID);
+            if (connected) {
+                connected = false;
+                Metrics.connectionClosed();
+            }
+            // Not logged out, e.g. disconnected as a slow reader
+            if (clientAlive) {
+                userLog.logoutUser(clientName, messenger);
+            }
+            clientAlive = false;
+        }
+
+
+        /**
+         * User input invalid command send response message to the user
+         * @throws IOException
+         */
+        private void wrongCommand() throws IOException {
+            commandFailed = true;
+            messenger.sendMessage("Error, Invalid command!");
+        }
+
+
+        /**
+         * User input invalid command send customized response message to the user 
+         * Also log the message as return message in server terminal
+         * @param msg String msg
+         * @throws IOException
+         */
+        private void wrongCommand(String msg) throws IOException {
+            commandFailed = true;
+            returnMsg(msg);
+            messenger.sendMessage(msg);
+        }
+
+
+        /**
+         * Logout the user. 
+         * Requirements: No Argument accepted.
+         * @param cmd Command the user command
+         * @throws IOException
+         * @throws EOFException
+         */
+        private void logout(Command cmd) throws IOException, EOFException {
+            issueMsg(clientName, cmd);
+            // Error checking
+            if (cmd.getArgSize() != 0) {
+                wrongCommand("Error:/logout: Too many arguments");
+                return;
+            }
+            userLog.logoutUser(clientName, messenger);
+            messenger.sendMessage("Bye, " + clientName + "!");
+            messenger.sendMessage("LOGOUT");    // Tell the client to close connect
+            broadcast(clientName + " logout");
+            throw new EOFException();   
+        }
+
+
+        /**
+         * Send message in a group. 
+         * Creats new Message and log in group log file
+         * Requirements:
+         *  1. Arguments >= 2
+         *  2. Group exists
+         *  3. Client is a member of the group
+         * @param cmd Command user command (including the message)
+         * @throws IOException
+         */
+        private void groupMsg(Command cmd)throws IOException {
+            issueMsg(clientName, cmd);
+            // Check argument number
+            if (cmd.getArgSize() < 2) {
+                wrongCommand("Error:/groupmsg: Check arguments");
+                return;
+            }
+
+            String groupname = cmd.getArg(0);
+            String message = " " + cmd.getRest(1);
+
+            Group group = groupLog.getGroup(groupname);
+            if (group == null) {
+                wrongCommand("The group chat " + groupname + " does not exist.");
+                return;
+            }
+            if (!group.isMember(clientName)) {
+                wrongCommand("You are not in this group chat: " + groupname);
+                return;
+            }
+            Message msg = new Message(message, clientName);
+            // Logged in the group log file and sent to the members on the group's shard, in order
+            if (!groupExecutor.submit(groupname, () -> group.sendMessage(msg, userLog))) {
+                wrongCommand("The group chat " + groupname + " is busy, message not sent.");
+                return;
+            }
+            messenger.sendMessage("message sent at " + msg.getTimestamp() + ".");
+            // broadcast
+            broadcast(clientName + " message to " + groupname + ":" + message + ", at " + msg.getTimestamp());
+        }
+
+
+        /**
+         * The client join a group
+         * Requirements:
+         *  1. Arguments = 1
+         *  2. Group exists
+         * @param cmd Command user command
+         * @throws IOException
+         */
+        private void joinGroup(Command cmd) throws IOException {
+            issueMsg(clientName, cmd);
+            // Check arguments
+            if (cmd.getArgSize() != 1) {
+                wrongCommand("Error:/joingroup: Not enough arguments");
+                return;
+            }
+
+            String groupname = cmd.getArg(0);
+            Group target = groupLog.getGroup(groupname);
+            if (target == null) {
+                wrongCommand("Error:/joingroup: Group doesn't exists");
+                return;
+            } else if (!GroupStore.fits(clientName)) {
+                wrongCommand("Error:/joingroup: The username is too long to be stored");
+                return;
+            }
+            // Join the group
+            groupLog.join(target, clientName);
+            messenger.sendMessage( "Join group chat: " + groupname + " successfully\n");
+            returnMsg("Join group chat: " + groupname + "successfully, users: " + target.toString() + "\n");
+        }
+
+
+        /**
+         * The client create a group with other active users
+         * Creats new Group object and register in GroupLog
+         * Requirements:
+         *  1. Arguments >= 2
+         *  2. Group name matches the format
+         *  3. Group name is not taken
+         *  4. all members are active
+         * @param cmd Command 
+         * @throws IOException
+         */
+        private void createGroup(Command cmd) throws IOException {
+            issueMsg(clientName, cmd);
+            // Not enough arguments
+            if (cmd.getArgSize() < 2) {
+                wrongCommand("Error:/creategroup: Not enough arguments");
+                return;
+            }
+
+            String regex = "^[a-zA-Z0-9]+$";
+            String groupName = cmd.getArg(0);
+            // Invalid group name format
+            if (!groupName.matches(regex)) {
+                wrongCommand("Error:/creategroup: Invalid group name");
+                return;
+            // Group Exists
+            } else if (groupLog.isCreated(groupName)) {
+                wrongCommand("Error:/creategroup: Failed to create the group chat " + groupName + " groupname exists");
+                return;
+            } else if (!GroupStore.fits(groupName)) {
+                wrongCommand("Error:/creategroup: Group name longer than " + GroupStore.MAX_STRING + " characters");
+                return;
+            }
+
+            Group newGroup = new Group(cmd, clientName);
+            Group registered = groupLog.registerGroup(newGroup, userLog);
+            // Group member not active
+            if (registered == null) {
+                wrongCommand("Error:/creategroup: one of groupmember not active or invalid");
+                return;
+            // Created by another user since the check above
+            } else if (registered != newGroup) {
+                wrongCommand("Error:/creategroup: Failed to create the group chat " + groupName + " groupname exists");
+                return;
+            }
+            // On success
+            String response = "Group chat room created, name " + groupName + " users: " + newGroup.toString();
+            messenger.sendMessage(response);
+            returnMsg(response);
+        }
+
+
+        /**
+         * Get all the active users currently
+         * Requirements:
+         *  1. No Arguments required
+         * If no other user, send "no other active user"
+         * @param cmd Command
+         * @throws IOException
+         */
+        private void activeuser(Command cmd) throws IOException {
+            issueMsg(clientName, cmd);
+            // Check argument number
+            if (cmd.getArgSize() != 0) {
+                wrongCommand("Error:/activeuser: Too many arguments");
+                return;
+            }
+            String report; 
+            ArrayList<UserRecord> allActiveUser = userLog.getAllActiveUsers(clientName);
+            if (allActiveUser.size() == 0) {
+                report = "no other active user";
+            } else {
+                report = allActiveUser.stream().map(UserRecord::toString).collect(Collectors.joining("\n"));
+            }
+            // The server terminal also shows the outbound queue of every user
+            if (ConsoleLog.isEnabled(ConsoleLog.Level.INFO)) {
+                returnMsg(allActiveUser.size() == 0 ? report : allActiveUser.stream()
+                    .map(u -> u + "; outbound " + userLog.getQueueDepth(u.getUsername()) + " queued, "
+                        + userLog.getDropped(u.getUsername()) + " dropped")
+                    .collect(Collectors.joining("\n")));
+            }
+            // send the report
+            messenger.sendMessage(report);
+        }
+
+
+        /**
+         * Get the UDP port and address of a user, for /p2pvideo.
+         * The answer is one PEER line read by the client (see PeerCache), not shown to the user
+         * Requirements:
+         *  1. Arguments = 1
+         * @param cmd Command
+         * @throws IOException
+         */
+        private void lookup(Command cmd) throws IOException {
+            if (cmd.getArgSize() != 1) {
+                wrongCommand("Error:/lookup: check arguments");
+                return;
+            }
+            String username = cmd.getArg(0);
+            messenger.sendMessage(PeerCache.reply(username, userLog.lookup(clientName, username), LOOKUP_TTL));
+        }
+
+
+        /**
+         * Announce a /p2pvideo transfer to its receiver, which only takes announced transfers.
+         * The receiver gets one P2P_OFFER line with the client's UDP port and address, the client
+         * one OFFERED line (see PeerCache), neither is shown to the users
+         * /offer <user> <transfer id> <size>
+         * Requirements:
+         *  1. Arguments = 3, the transfer ID and the size are numbers
+         * @param cmd Command
+         * @throws IOException
+         */
+        private void offer(Command cmd) throws IOException {
+            if (cmd.getArgSize() != 3) {
+                wrongCommand("Error:/offer: check arguments");
+                return;
+            }
+            String username = cmd.getArg(0);
+            int transfer;
+            long size;
+            try {
+                transfer = Integer.parseInt(cmd.getArg(1));
+                size = Long.parseLong(cmd.getArg(2));
+            } catch (NumberFormatException e) {
+                wrongCommand("Error:/offer: check arguments");
+                return;
+            }
+            UserRecord sender = userLog.getUser(clientName);
+            Contact receiver = userLog.getUserContact(username);
+            boolean relayed = false;
+            if (sender != null && receiver != null && size >= 0) {
+                try {
+                    receiver.offerMessage(PeerCache.offer(sender, transfer, size));
+                    relayed = true;
+                } catch (IOException e) {
+                    // Logged out since the lookup
+                }
+            }
+            messenger.sendMessage(PeerCache.offered(username, transfer, relayed));
+        }
+
+
+        /**
+         * Page through the messages of a group, or the private messages with a user
+         * /history <user|group> [since] [limit]
+         * since is a message number or a time (e.g. 2024-06-01T21:30:00), limit the entries of the page
+         * Requirements:
+         *  1. Arguments 1 to 3
+         *  2. The group exists and the client is a member, or the user exists
+         * @param cmd Command
+         * @throws IOException
+         */
+        private void history(Command cmd) throws IOException {
+            issueMsg(clientName, cmd);
+            if (cmd.getArgSize() < 1 || cmd.getArgSize() > 3) {
+                wrongCommand("Error:/history: check arguments");
+                return;
+            }
+            String target = cmd.getArg(0);
+            long from = 1;
+            long since = -1;
+            int limit = HISTORY_PAGE;
+            try {
+                if (cmd.getArgSize() > 1) {
+                    String start = cmd.getArg(1);
+                    if (start.matches("\\d+")) {
+                        from = Long.parseLong(start);
+                    } else {
+                        since = LocalDateTime.parse(start).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    }
+                }
+                if (cmd.getArgSize() > 2) {
+                    limit = Integer.parseInt(cmd.getArg(2));
+                    if (limit < 1) {
+                        throw new NumberFormatException();
+                    }
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                wrongCommand("Error:/history: since is a message number or a time like 2024-06-01T21:30:00, limit a number");
+                return;
+            }
+            limit = Math.min(limit, MAX_HISTORY_PAGE);
+
+            MessageLog log;
+            MessageLog.Page page;
+            Group group = groupLog.getGroup(target);
+            if (group != null) {
+                if (!group.isMember(clientName)) {
+                    wrongCommand("Error:/history: You are not in this group chat: " + target);
+                    return;
+                }
+                log = group.getMessageLog();
+                page = log.read(from, since, limit, entry -> true);
+            } else if (authenticator.hasUser(target)) {
+                log = messageLog;
+                page = log.read(from, since, limit, entry -> MessageLog.isBetween(entry, clientName, target));
+            } else {
+                wrongCommand("Error:/history: " + target + " is not a group or a user");
+                return;
+            }
+            // The page fits one legacy message, the rest goes to the next page
+            StringBuilder reply = new StringBuilder();
+            List<String> entries = page.getEntries();
+            long next = page.getNext();
+            int budget = FrameCodec.MAX_LEGACY - FrameCodec.legacyLength(target) - 64;
+            int length = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                String line = log.display(entries.get(i));
+                int bytes = FrameCodec.legacyLength(line) + (i > 0 ? 1 : 0);
+                if (length + bytes > budget) {
+                    if (i > 0) {
+                        next = MessageLog.numberOf(entries.get(i));
+                        break;
+                    }
+                    line = cut(line, budget);
+                    bytes = FrameCodec.legacyLength(line);
+                }
+                reply.append(i > 0 ? "\n" : "").append(line);
+                length += bytes;
+            }
+            if (entries.isEmpty()) {
+                reply.append("No messages");
+            }
+            if (next > 0) {
+                reply.append("\nMore: /history ").append(target).append(' ').append(next).append(' ').append(limit);
+            }
+            messenger.sendMessage(reply.toString());
+        }
+
+
+        /**
+         * Cut a text to a number of legacy bytes, never between the two chars of a surrogate pair
+         * @param text String
+         * @param bytes int
+         * @return String the text, ending with [...] if it was cut
+         */
+        private String cut(String text, int bytes) {
+            String marker = " [...]";
+            int length = FrameCodec.legacyLength(marker);
+            int end = 0;
+            while (end < text.length()) {
+                int size = Character.isHighSurrogate(text.charAt(end)) && end + 1 < text.length() ? 2 : 1;
+                length += FrameCodec.legacyLength(text.substring(end, end + size));
+                if (length > bytes) {
+                    return text.substring(0, end) + marker;
+                }
+                end += size;
+            }
+            return text;
+        }
+
+
+        /**
+         * Show the command counters, latencies and gauges of the server
+         * Requirements:
+         *  1. No Arguments required
+         *  2. The client is an admin (messenger.admins)
+         * @param cmd Command
+         * @throws IOException
+         */
+        private void stats(Command cmd) throws IOException {
+            issueMsg(clientName, cmd);
+            if (cmd.getArgSize() != 0) {
+                wrongCommand("Error:/stats: Too many arguments");
+                return;
+            }
+            if (!admins.contains(clientName)) {
+                wrongCommand("Error:/stats: Only admins can see the stats");
+                return;
+            }
+            messenger.sendMessage(Metrics.report());
+        }
+
+
+        /**
+         * Private message to another user
+         * Create new Message object and log in messagelog.txt
+         * A receiver that is not logged in gets the message from the offline inbox at login
+         * Requirements:
+         *  1. Arguments >= 2
+         *  2. Cannot msgto self
+         *  3. The receiver is a registered user
+         * @param cmd Command
+         * @throws IOException
+         */
+        private void msgto(Command cmd) throws IOException {
+            issueMsg(clientName, cmd);
+            // Check argument number
+            if (cmd.getArgSize() < 2) {
+                wrongCommand("Error:/msgto: check arugments");
+                return;
+            }
+            // The receiver name:
+            String receiver = cmd.getArg(0);
+            // The message is the rest of the line as typed:
+            String message = " " + cmd.getRest(1);
+
+            // Error check: receiver is not self, receiver exists
+            if (receiver.equals(clientName)) {
+                wrongCommand("Error:/msgto: Can't /msgto yourself");
+                return;
+            } else if (!authenticator.hasUser(receiver)) {
+                wrongCommand("Error:/msgto: " + receiver + " does not exist");
+                return;
+            }
+            Message msg = new Message(message, receiver, clientName);
+            messageLog.logMessage(msg);     // Log message in message.txt
+            String text = msg.getTimestamp() + ", " + clientName + ":" + msg.getMessage();
+            Contact userContact = userLog.getUserContact(receiver);
+            if (userContact == null || userContact.isDisconnected()) {
+                keepOffline(receiver, msg, text);
+                return;
+            }
+            // Send message to target
+            try {
+                userContact.sendMessage(text);
+            } catch (IOException e) {
+                // Logged out since the lookup
+                keepOffline(receiver, msg, text);
+                return;
+            }
+            // Notify the sender
+            messenger.sendMessage("message sent at " + msg.getTimestamp() + ".");
+            // broadcast
+            broadcast(clientName + " message to " + receiver + ":" + msg.getMessage() + ", at " + msg.getTimestamp());
+        }
+
+
+        /**
+         * Keep a /msgto message to a user who is not logged in in the offline inbox
+         * @param receiver String
+         * @param msg Message
+         * @param text String the message as the receiver gets it
+         * @throws IOException
+         */
+        private void keepOffline(String receiver, Message msg, String text) throws IOException {
+            inbox.store(receiver, text);
+            // The receiver may have logged in meanwhile
+            Contact contact = userLog.getUserContact(receiver);
+            if (contact != null) {
+                inbox.deliver(receiver, contact);
+            }
+            messenger.sendMessage(receiver + " is offline, message kept at " + msg.getTimestamp() + ", delivered at login.");
+            broadcast(clientName + " message to offline " + receiver + ":" + msg.getMessage() + ", at " + msg.getTimestamp());
+        }
+    }
+
+
+    /*
+     * Blocking session of one client, runs on a platform or a virtual thread
+     */
+    private static class ClientThread implements Runnable {
+        private final Messenger messenger;
+        private final Session session;
+
+
+        /**
+         * ClientThread Constructor
+         * @param clientSocket Socket client socket
+         */
+        ClientThread(Socket clientSocket) {
+            this.messenger = new Messenger(clientSocket);
+            String clientAddress = clientSocket.getInetAddress().getHostAddress();
+            this.session = new Session("(" + clientAddress + ", " + clientSocket.getPort() + ")", messenger);
+        }
+
+
+        /**
+         * Run the client session
+         */
+        @Override
+        public void run() {
+            broadcast("===== New connection created for user - " + session.getClientID());
+            // Replies are written together with the next prompt
+            messenger.flushOnRead();
+            try {
+                // Login
+                while (!session.isAlive()) {
+                    if (!session.isBlocked()) {
+                        String userName = messenger.readMessage("Please enter username:");
+                        String password = messenger.readMessage("Please enter password:");
+                        if (session.authenticate(userName, password)) {
+                            // Tell the client to send the UDP port number
+                            session.login(userName, messenger.readMessage("LOGIN_SUCCEEDED"));
+                        }
+                    } else {
+                        // Block the user for 10 seconds.
+                        messenger.flush();
+                        if (!messenger.isEmpty()) {
+                            messenger.readMessage();
+                            messenger.sendMessage("Please try again later.");
+                        } else {
+                            // Do not spin, a virtual thread would hold its carrier thread
+                            Thread.sleep(BLOCK_POLL_INTERVAL);
+                        }
+                    }
+                }
+
+                // Logged in
+                while (session.isAlive()) {
+                    messenger.healthCheck();
+                    session.dispatch(messenger.readMessage(Session.MENU));
+                }
+            } catch (EOFException e) {
+                session.disconnect();
+            } catch (IOException e) {
+                if (!messenger.isDisconnected()) {
+                    ConsoleLog.error("===== Connection error, user - " + session.getClientID(), e);
+                }
+                session.disconnect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // The last replies, e.g. the goodbye of /logout
+                messenger.flush();
+            }
+        }
+    }
+
+    /**
+     * Accept connections and run every client session on the executor
+     * @param executor ExecutorService starts a thread for every session
+     * @throws IOException
+     */
+    private static void runBlocking(ExecutorService executor) throws IOException {
+        serverSocket = new ServerSocket(serverPort);
+        while (true) {
+            // when new connection request reaches the server, then server socket establishes connection
+            Socket clientSocket = serverSocket.accept();
+            executor.execute(new ClientThread(clientSocket));
+        }
+    }
+
+
+    /**
+     * Create an executor that starts a new virtual thread for every task.
+     * Virtual threads need Java 21, the factory is looked up so the server still runs on older versions
+     * @return ExecutorService (On fail null)
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 4) {
+            broadcast("===== Error usage: java Server SERVER_PORT number_of_consecutive_failed_attempts [classic|virtual|nio] [reactors] =====");
+            return;
+        }
+
+        serverPort = Integer.parseInt(args[0]);
+        try {
+            if (Integer.parseInt(args[1]) < 6 &&  Integer.parseInt(args[1]) > 0) {
+                MAX_ATTEMPT = Integer.parseInt(args[1]);
+            } else {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            broadcast("Invalid number of allowed failed consecutive attempt:" + args[1]);
+            return;
+        }
+
+        String mode = args.length > 2 ? args[2] : "classic";
+        if (!mode.equals("classic") && !mode.equals("virtual") && !mode.equals("nio")) {
+            broadcast("Invalid server mode:" + mode);
+            return;
+        }
+        int reactors = Runtime.getRuntime().availableProcessors();
+        try {
+            if (args.length > 3) {
+                reactors = Integer.parseInt(args[3]);
+                if (reactors < 1) {
+                    throw new NumberFormatException();
+                }
+            }
+        } catch (NumberFormatException e) {
+            broadcast("Invalid number of reactors:" + args[3]);
+            return;
+        }
+
+        ExecutorService virtualExecutor = null;
+        if (mode.equals("virtual")) {
+            virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor == null) {
+                broadcast("Virtual threads are not supported by Java " + Runtime.version().feature());
+                return;
+            }
+        }
+
+        Metrics.registerMBeans();
+        broadcast("===== Server is running (" + mode + ") =====");
+        broadcast("===== Waiting for connection request from clients...=====");
+
+        switch (mode) {
+            case "classic":
+                runBlocking(Executors.newCachedThreadPool());
+                break;
+            case "virtual":
+                Messenger.setWriterExecutor(newVirtualThreadExecutor());
+                runBlocking(virtualExecutor);
+                break;
+            case "nio":
+                new NioServer(serverPort, reactors).run();
+                break;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package messenger;
+
+/*
+ * Tuning settings of the server, read from system properties with defaults.
+ * e.g.: java -Dmessenger.outbound.capacity=4096 messenger.Server 8000 3
+ */
+public class Settings {
+    /**
+     * Get an int setting
+     * @param key String property name
+     * @param defaultValue int used when the property is missing or invalid
+     * @return int
+     */
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+
+    /**
+     * Get a long setting
+     * @param key String property name
+     * @param defaultValue long used when the property is missing or invalid
+     * @return long
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid setting " + key + "=" + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Get a String setting
+     * @param key String property name
+     * @param defaultValue String used when the property is missing
+     * @return String
+     */
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(key, defaultValue);
+    }
+
+
+    /**
+     * Get an enum setting, the value is case insensitive
+     * @param key String property name
+     * @param defaultValue E used when the property is missing or invalid
+     * @return E
+     */
+    public static <E extends Enum<E>> E getEnum(String key, E defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid setting " + key + "=" + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
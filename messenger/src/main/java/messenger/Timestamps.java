@@ -0,0 +1,69 @@
+package messenger;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/*
+ * Renders the timestamps of messages and user records in dd MMM yyyy HH:mm:ss format.
+ * The formatter is shared and the text of the latest second is cached,
+ * so a timestamp is formatted at most once per second however many messages are sent.
+ */
+public class Timestamps {
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss")
+        .withZone(ZoneId.systemDefault());
+    private static volatile Rendered latest = new Rendered(Long.MIN_VALUE, null);
+
+    /*
+     * The text of one second
+     */
+    private static class Rendered {
+        final long second;
+        final String text;
+
+        Rendered(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+
+    /**
+     * Get the current time
+     * @return long epoch milliseconds
+     */
+    public static long now() {
+        return System.currentTimeMillis();
+    }
+
+
+    /**
+     * Cast a timestamp to string in dd MMM yyyy HH:mm:ss format
+     * @param epochMillis long
+     * @return String
+     */
+    public static String format(long epochMillis) {
+        long second = Math.floorDiv(epochMillis, 1000L);
+        Rendered rendered = latest;
+        if (rendered.second == second) {
+            return rendered.text;
+        }
+        String text = formatter.format(Instant.ofEpochSecond(second));
+        // Only a newer second replaces the cache, an old timestamp is just formatted
+        if (second > rendered.second) {
+            latest = new Rendered(second, text);
+        }
+        return text;
+    }
+
+
+    /**
+     * Parse a timestamp in dd MMM yyyy HH:mm:ss format
+     * @param text String
+     * @return long epoch milliseconds
+     * @throws java.time.format.DateTimeParseException when the text is not a timestamp
+     */
+    public static long parse(CharSequence text) {
+        return Instant.from(formatter.parse(text)).toEpochMilli();
+    }
+}
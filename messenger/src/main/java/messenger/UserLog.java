@@ -0,0 +1,396 @@
+package messenger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Helps to manage all the active users and how to contact them
+ * Also log the user's activities in userlog.txt
+ * Thread safe: lookups by username go to concurrent maps without locking,
+ * login / logout hold a write lock so a snapshot of all active users is consistent.
+ *
+ * A login / logout only appends one line to userlog.journal, a background task
+ * periodically compacts the journal into the userlog.txt snapshot of the active users.
+ * The journal is renamed to userlog.journal.old while the snapshot is written, so the
+ * active users are the snapshot, then userlog.journal.old if any, then userlog.journal.
+ * Presence does not survive a restart, so the files start empty.
+ *
+ * The clients that looked a user up (/lookup) cache its UDP port and address, they are told
+ * with PEER_GONE when the user logs out or logs in again. The messages are sent after the lock
+ * is released, a slow reader must not hold up the logins.
+ */
+public class UserLog {
+    private static final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "userlog-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private String logPath = "userlog.txt";
+    private String journalPath;
+    private String rotatedPath;
+    private BufferedWriter journal;                                         // Guarded by lock
+    private boolean dirty = false;                                          // Guarded by lock
+    private Map<String, UserRecord> activeUser = new ConcurrentHashMap<>();
+    private Map<String, Contact> userContacts = new ConcurrentHashMap<>();
+    private Map<String, UserRecord> loginOrder = new LinkedHashMap<>();    // Guarded by lock
+    private Map<String, Set<String>> watchers = new ConcurrentHashMap<>();  // User to the users that looked it up
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object compaction = new Object();                         // One compaction at a time
+
+
+    /**
+     * UserLog constructor, logs in userlog.txt
+     */
+    public UserLog() {
+        this("userlog.txt");
+    }
+
+
+    /**
+     * UserLog constructor
+     * @param logPath String the snapshot file, null to keep the users in memory only
+     */
+    public UserLog(String logPath) {
+        this.logPath = logPath;
+        if (logPath == null) {
+            return;
+        }
+        this.journalPath = logPath.replaceFirst("\\.txt$", "") + ".journal";
+        this.rotatedPath = journalPath + ".old";
+        try {
+            Files.deleteIfExists(Paths.get(rotatedPath));
+            journal = new BufferedWriter(new FileWriter(journalPath));
+            writeSnapshot(new ArrayList<>());
+        } catch (IOException e) {
+            ConsoleLog.error("User log: can't open " + journalPath, e);
+        }
+        long interval = Settings.getLong("messenger.userlog.compactInterval", 5000);
+        compactor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Append a user to the active user list
+     * and record the user's messenger.
+     * @param record UserRecord
+     * @param messenger Contact
+     */
+    public void appendUser(UserRecord record, Contact messenger) {
+        String username = record.getUsername();
+        Set<String> stale = null;
+        lock.writeLock().lock();
+        try {
+            // A user logging in again moves to the end
+            if (loginOrder.remove(username) != null) {
+                stale = watchers.remove(username);
+            }
+            loginOrder.put(username, record);
+            this.userContacts.put(username, messenger);
+            this.activeUser.put(username, record);
+            log("LOGIN; " + record.toString());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        invalidate(username, stale);
+    }
+
+
+    /**
+     * Test if a user is active
+     * @param username String
+     * @return boolean
+     */
+    public boolean isActive(String username) {
+        if (findUser(username) != null) return true;
+        return false;
+    }
+
+
+    /**
+     * Get the user's messenger
+     * @param username String
+     * @return Contact
+     */
+    public Contact getUserContact(String username) {
+        return userContacts.get(username);
+    }
+
+
+    /**
+     * Get the number of messages waiting to be written to the user
+     * @param username String
+     * @return int (0 if not active)
+     */
+    public int getQueueDepth(String username) {
+        Contact messenger = userContacts.get(username);
+        return messenger == null ? 0 : messenger.getQueueDepth();
+    }
+
+
+    /**
+     * Get the number of messages to the user dropped because the queue was full
+     * @param username String
+     * @return long (0 if not active)
+     */
+    public long getDropped(String username) {
+        Contact messenger = userContacts.get(username);
+        return messenger == null ? 0 : messenger.getDropped();
+    }
+
+
+    /**
+     * Get all active users' UserRecord excludes the current user
+     * A consistent snapshot in login order.
+     * @param currentUser String current user
+     * @return ArrayList<UserRecord>
+     */
+    public ArrayList<UserRecord> getAllActiveUsers(String currentUser) {
+        lock.readLock().lock();
+        try {
+            ArrayList<UserRecord> all = new ArrayList<>(loginOrder.size());
+            for (UserRecord record : loginOrder.values()) {
+                if (!record.getUsername().equals(currentUser)) {
+                    all.add(record);
+                }
+            }
+            return all;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Get the number of active users
+     * @return int
+     */
+    public int getActiveCount() {
+        return activeUser.size();
+    }
+
+
+    /**
+     * Get an active user's record
+     * @param username String
+     * @return UserRecord (null if not active)
+     */
+    public UserRecord getUser(String username) {
+        return findUser(username);
+    }
+
+
+    /**
+     * Get the target user's UDP port
+     * @param username String targer user
+     * @return Integer UDP port number
+     */
+    public Integer getUserUDP(String username) {
+        UserRecord r = findUser(username);
+        if (r != null) {
+            return r.getUDPport();
+        }
+        return null;
+    }
+
+
+    /**
+     * Logout a user delete the record in userlog.txt
+     * remove from active user list
+     * @param username String
+     */
+    public void logoutUser(String username) {
+        logoutUser(username, null);
+    }
+
+
+    /**
+     * Logout a user only if it is still contacted by the given messenger,
+     * so a closing old connection does not logout a new login of the same user
+     * @param username String
+     * @param messenger Contact the user's messenger, null for any
+     */
+    public void logoutUser(String username, Contact messenger) {
+        Set<String> stale = null;
+        lock.writeLock().lock();
+        try {
+            if (messenger != null && userContacts.get(username) != messenger) {
+                return;
+            }
+            if (activeUser.remove(username) != null) {
+                userContacts.remove(username);
+                loginOrder.remove(username);
+                stale = watchers.remove(username);
+                log("LOGOUT; " + username);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        invalidate(username, stale);
+    }
+
+
+    /**
+     * Look a user up for another user, who is told when the answer is no longer valid
+     * @param requester String the user asking
+     * @param username String the user looked up
+     * @return UserRecord (On fail null)
+     */
+    public UserRecord lookup(String requester, String username) {
+        // The read lock orders the lookup before or after a logout of the user
+        lock.readLock().lock();
+        try {
+            UserRecord record = findUser(username);
+            if (record != null) {
+                watchers.computeIfAbsent(username, k -> ConcurrentHashMap.newKeySet()).add(requester);
+            }
+            return record;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Tell the users that looked a user up to forget it
+     * @param username String the user that logged out or in again
+     * @param requesters Set<String> null if nobody looked it up
+     */
+    private void invalidate(String username, Set<String> requesters) {
+        if (requesters == null) {
+            return;
+        }
+        String gone = PeerCache.gone(username);
+        for (String requester : requesters) {
+            Contact contact = userContacts.get(requester);
+            if (contact == null) {
+                continue;
+            }
+            try {
+                contact.sendMessage(gone);
+            } catch (IOException e) {
+                // The requester is disconnecting, its cache goes with it
+            }
+        }
+    }
+
+
+    /**
+     * Finds a user in active user list
+     * @param username String user name
+     * @return UserRecord (On fail null)
+     */
+    private UserRecord findUser(String username) {
+        return activeUser.get(username);
+    }
+
+
+    /**
+     * Log the user activity (login / logout) in userlog.journal
+     * Called with the write lock held.
+     * @param entry String the journal line
+     */
+    private void log(String entry) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write(entry);
+            journal.newLine();
+            journal.flush();
+            dirty = true;
+        } catch (IOException e) {
+            ConsoleLog.error("User log: can't write to the journal", e);
+        }
+    }
+
+
+    /**
+     * Compact the journal: rewrite userlog.txt with the active users and empty the journal.
+     * Runs periodically on the compactor thread.
+     * Only the rotation of the journal holds the write lock, the snapshot is written and synced
+     * without it. The rotated journal is deleted once the snapshot replaced userlog.txt:
+     * after a crash the snapshot and the journals together have every login.
+     */
+    public void compact() {
+        synchronized (compaction) {
+            List<UserRecord> users;
+            lock.writeLock().lock();
+            try {
+                if (!dirty) {
+                    return;
+                }
+                rotate();
+                dirty = false;
+                users = new ArrayList<>(loginOrder.values());
+            } catch (IOException e) {
+                ConsoleLog.error("User log: can't rotate the journal", e);
+                return;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                writeSnapshot(users);
+                Files.delete(Paths.get(rotatedPath));
+            } catch (IOException e) {
+                // The rotated journal stays, the next compaction adds to it
+                ConsoleLog.error("User log: can't write the snapshot", e);
+            }
+        }
+    }
+
+
+    /**
+     * Move the journal lines to userlog.journal.old and start an empty journal.
+     * Called with the write lock held. The lines are appended if the last snapshot failed.
+     * @throws IOException
+     */
+    private void rotate() throws IOException {
+        journal.close();
+        Path current = Paths.get(journalPath);
+        Path rotated = Paths.get(rotatedPath);
+        if (Files.exists(rotated)) {
+            Files.write(rotated, Files.readAllBytes(current), StandardOpenOption.APPEND);
+        } else {
+            Files.move(current, rotated, StandardCopyOption.ATOMIC_MOVE);
+        }
+        journal = new BufferedWriter(new FileWriter(journalPath));
+    }
+
+
+    /**
+     * Write the users to userlog.txt, synced and replaced atomically so readers never see a partial file
+     * @param users List<UserRecord> in login order
+     * @throws IOException
+     */
+    private void writeSnapshot(List<UserRecord> users) throws IOException {
+        Path target = Paths.get(logPath);
+        Path temp = Paths.get(logPath + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp.toFile());
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8))) {
+            int i = 0;
+            for (UserRecord user : users) {
+                String entry = String.format("%d; %s", ++i, user.toString());
+                writer.write(entry);
+                writer.newLine();
+            }
+            writer.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
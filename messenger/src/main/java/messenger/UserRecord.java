@@ -1,11 +1,10 @@
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+package messenger;
 
 /*
  * Helps to store the user's basic information
  */
 public class UserRecord {
-    private LocalDateTime timestamp;    // Time the userrecord created
+    private long timestamp;    // Time the userrecord created, epoch milliseconds
     private String username;
     private String address;
     private Integer UDPport;
@@ -18,7 +17,7 @@ public class UserRecord {
      * @param UDPport Integer
      */
     public UserRecord(String username, String address, Integer UDPport) {
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = Timestamps.now();
         this.username = username;
         this.address = address;
         this.UDPport = UDPport;
@@ -52,6 +51,16 @@ public class UserRecord {
     }
 
 
+    /**
+     * Get the IP address of the user, without the TCP port
+     * @return String e.g. 129.64.1.11 for (129.64.1.11, 52000)
+     */
+    public String getHost() {
+        int comma = address.lastIndexOf(',');
+        return address.substring(address.startsWith("(") ? 1 : 0, comma < 0 ? address.length() : comma).trim();
+    }
+
+
     /**
      * Get user UDP port number 
      * @return Integer
@@ -66,8 +75,7 @@ public class UserRecord {
      * @return String
      */
     private String timeToString() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss");
-        return this.timestamp.format(formatter);
+        return Timestamps.format(timestamp);
     }
     
 
@@ -0,0 +1,135 @@
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The groups on disk: compaction alongside the changes, a record cut by a crash and a restart before the snapshot
+ */
+class GroupStoreTest {
+    @TempDir
+    Path dir;
+
+
+    private GroupStore open() throws Exception {
+        GroupStore store = new GroupStore(dir.resolve("groups").toString());
+        store.load();
+        return store;
+    }
+
+
+    private Map<String, Set<String>> reload() throws Exception {
+        Map<String, Set<String>> groups = new LinkedHashMap<>();
+        for (GroupStore.Entry entry : new GroupStore(dir.resolve("groups").toString()).load()) {
+            groups.put(entry.getName(), entry.getMembers());
+        }
+        return groups;
+    }
+
+
+    /**
+     * Create a group the way GroupLog does: registered, then recorded
+     */
+    private static Group create(GroupStore store, Collection<Group> groups, String name, String... members) {
+        Group group = new Group(name, new LinkedHashSet<>(Arrays.asList(members)));
+        groups.add(group);
+        store.created(group);
+        return group;
+    }
+
+
+    private static void join(GroupStore store, Group group, String member) {
+        group.join(member);
+        store.joined(group.getGroupName(), member);
+    }
+
+
+    @Test
+    void compactionAlongsideChangesKeepsEveryGroup() throws Exception {
+        GroupStore store = open();
+        Collection<Group> groups = new ConcurrentLinkedQueue<>();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 500; i++) {
+                Group group = create(store, groups, "group" + i, "yoda");
+                join(store, group, "vader");
+                join(store, group, "user" + i);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            store.compact(groups);
+        }
+        writer.join();
+
+        Map<String, Set<String>> loaded = reload();
+        assertEquals(500, loaded.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(List.of("yoda", "vader", "user" + i), List.copyOf(loaded.get("group" + i)));
+        }
+        // And once every change is in the snapshot
+        store.compact(groups);
+        assertEquals(loaded, reload());
+        assertEquals(0, Files.size(dir.resolve("groups.log")));
+    }
+
+
+    @Test
+    void cutRecordIsDropped() throws Exception {
+        GroupStore store = open();
+        Collection<Group> groups = new ConcurrentLinkedQueue<>();
+        join(store, create(store, groups, "jedi", "yoda"), "luke");
+        long size = Files.size(dir.resolve("groups.log"));
+        create(store, groups, "sith", "vader", "palpatine");
+        // A crash in the middle of the last record
+        try (FileChannel log = FileChannel.open(dir.resolve("groups.log"), StandardOpenOption.WRITE)) {
+            log.truncate(size + 5);
+        }
+
+        Map<String, Set<String>> loaded = reload();
+        assertEquals(List.of("jedi"), List.copyOf(loaded.keySet()));
+        assertEquals(List.of("yoda", "luke"), List.copyOf(loaded.get("jedi")));
+        assertEquals(size, Files.size(dir.resolve("groups.log")));
+    }
+
+
+    @Test
+    void restartBeforeTheSnapshotReplaysBothLogs() throws Exception {
+        GroupStore store = open();
+        Collection<Group> groups = new ConcurrentLinkedQueue<>();
+        Group jedi = create(store, groups, "jedi", "yoda");
+        store.compact(groups);
+        join(store, jedi, "luke");
+        // The log set aside by a compaction that did not write its snapshot
+        Files.move(dir.resolve("groups.log"), dir.resolve("groups.log.old"));
+        Files.createFile(dir.resolve("groups.log"));
+        join(open(), jedi, "leia");
+
+        Map<String, Set<String>> loaded = reload();
+        assertEquals(List.of("yoda", "luke", "leia"), List.copyOf(loaded.get("jedi")));
+
+        // The next compaction folds both logs into the snapshot
+        store = new GroupStore(dir.resolve("groups").toString());
+        store.load();
+        store.compact(groups);
+        assertFalse(Files.exists(dir.resolve("groups.log.old")));
+        assertTrue(Files.exists(dir.resolve("groups.snapshot")));
+        assertEquals(loaded, reload());
+    }
+}
@@ -0,0 +1,55 @@
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The appender tells the log about the entries it could not write
+ */
+class LogAppenderTest {
+    @TempDir
+    Path dir;
+
+
+    @Test
+    void entriesThatCantBeWrittenAreFailed() throws Exception {
+        LogAppender appender = new LogAppender(LogAppender.Durability.BATCH, 1000, 16);
+        String missing = dir.resolve("missing").resolve("log.txt").toString();
+        String written = dir.resolve("log.txt").toString();
+        CompletableFuture<IOException> failed = new CompletableFuture<>();
+        CompletableFuture<IOException> other = new CompletableFuture<>();
+        appender.append(missing, "lost", failed::complete);
+        appender.append(written, "kept", other::complete);
+
+        assertTrue(failed.get(5, TimeUnit.SECONDS) != null);
+        for (int i = 0; i < 100 && !Files.exists(dir.resolve("log.txt")); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("kept", new String(Files.readAllBytes(dir.resolve("log.txt")), StandardCharsets.UTF_8).trim());
+        assertFalse(other.isDone());
+    }
+
+
+    @Test
+    void interruptedAppendIsFailed() {
+        LogAppender appender = new LogAppender(LogAppender.Durability.NONE, 1000, 16);
+        CompletableFuture<IOException> failed = new CompletableFuture<>();
+        Thread.currentThread().interrupt();
+        appender.append(dir.resolve("log.txt").toString(), "line", failed::complete);
+
+        assertTrue(Thread.interrupted());
+        assertTrue(failed.getNow(null) instanceof InterruptedIOException);
+    }
+}
@@ -0,0 +1,134 @@
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The segmented message log: recovery after a crash, migration of a format 1 log and the entries shown
+ */
+class MessageLogTest {
+    @TempDir
+    Path dir;
+
+
+    private MessageLog open() {
+        return new GroupMessageLog(dir.resolve("jedi_messageLog.txt").toString());
+    }
+
+
+    private static List<String> readAll(MessageLog log) throws Exception {
+        List<String> entries = new ArrayList<>();
+        long from = 1;
+        do {
+            MessageLog.Page page = log.read(from, -1, 500, entry -> true);
+            entries.addAll(page.getEntries());
+            from = page.getNext();
+        } while (from > 0);
+        return entries;
+    }
+
+
+    /**
+     * Log messages and wait for the appender to write them
+     */
+    private static void logMessages(MessageLog log, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            log.logMessage(new Message("message " + i + " " + "x".repeat(100), "yoda"));
+        }
+        for (int i = 0; i < 500 && readAll(log).size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, readAll(log).size());
+    }
+
+
+    private Path segment(String extension) {
+        return dir.resolve("jedi_messageLog-segments").resolve("jedi_messageLog-000000000001" + extension);
+    }
+
+
+    @Test
+    void cutLineAndStaleIndexAreDropped() throws Exception {
+        logMessages(open(), 200);
+        long size = Files.size(segment(".txt"));
+        // A crash after the index line of the next message was written, its own line cut
+        Files.write(segment(".txt"), "201; 2024-06-01 21:30:00; yoda;cut sh".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        Files.write(segment(".idx"), ("201 0 " + size + System.lineSeparator() + "202 0 " + (size + 9000) + System.lineSeparator())
+            .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        MessageLog log = open();
+        List<String> entries = readAll(log);
+        assertEquals(200, entries.size());
+        assertEquals(size, Files.size(segment(".txt")));
+        for (String line : Files.readAllLines(segment(".idx"), StandardCharsets.UTF_8)) {
+            assertTrue(Long.parseLong(line.split(" ")[2]) < size);
+        }
+
+        // The numbers go on from the last whole message, the pages seek from the index again
+        log.logMessage(new Message("after", "yoda"));
+        for (int i = 0; i < 500 && readAll(log).size() < 201; i++) {
+            Thread.sleep(10);
+        }
+        entries = readAll(open());
+        assertTrue(entries.get(200).startsWith("201; "));
+        assertTrue(entries.get(200).endsWith("after"));
+        assertEquals(150, MessageLog.numberOf(open().read(150, -1, 1, entry -> true).getEntries().get(0)));
+    }
+
+
+    @Test
+    void indexPastTheEndIsDropped() throws Exception {
+        logMessages(open(), 100);
+        long size = Files.size(segment(".txt"));
+        Files.write(segment(".idx"), ("101 0 " + (size + 5000) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        MessageLog log = open();
+        assertEquals(100, readAll(log).size());
+        assertEquals(100, MessageLog.numberOf(log.read(100, -1, 1, entry -> true).getEntries().get(0)));
+        assertFalse(new String(Files.readAllBytes(segment(".idx")), StandardCharsets.UTF_8).contains("101 0"));
+    }
+
+
+    @Test
+    void formatOneLogIsMigrated() throws Exception {
+        Files.write(dir.resolve("jedi_messageLog.txt"), ("1; 01 Jun 2024 21:30:00; yoda;first" + System.lineSeparator()
+            + "2; 01 Jun 2024 21:31:00; vader;two" + System.lineSeparator() + "lines" + System.lineSeparator())
+            .getBytes(StandardCharsets.UTF_8));
+
+        MessageLog log = open();
+        List<String> entries = readAll(log);
+        assertEquals(2, entries.size());
+        assertEquals("2; 01 Jun 2024 21:31:00; vader;two\\nlines", entries.get(1));
+        assertEquals("2; 01 Jun 2024 21:31:00; vader;two\nlines", log.display(entries.get(1)));
+        assertTrue(Files.exists(dir.resolve("jedi_messageLog.txt.migrated")));
+        assertEquals("2", new String(Files.readAllBytes(dir.resolve("jedi_messageLog-segments").resolve("FORMAT")), StandardCharsets.UTF_8).trim());
+    }
+
+
+    @Test
+    void emptyFormatOneLogIsLeftAlone() throws Exception {
+        Files.createFile(dir.resolve("jedi_messageLog.txt"));
+        assertTrue(readAll(open()).isEmpty());
+        assertTrue(Files.exists(dir.resolve("jedi_messageLog.txt")));
+        assertFalse(Files.exists(dir.resolve("jedi_messageLog.txt.migrated")));
+    }
+
+
+    @Test
+    void privateEntryIsShownWithItsLineBreaks() {
+        String entry = "7; 01 Jun 2024 21:30:00; yoda; vader;a\\\\b\\nc";
+        assertEquals("7; 01 Jun 2024 21:30:00; yoda; vader;a\\b\nc", new MessageLog().display(entry));
+        assertEquals(7, MessageLog.numberOf(entry));
+    }
+}
@@ -0,0 +1,181 @@
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The offline inbox: batches a legacy connection can carry, dropped batches and compaction
+ */
+class OfflineInboxTest {
+    @TempDir
+    Path dir;
+
+    private static String repeat(char c, int count) {
+        StringBuilder text = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            text.append(c);
+        }
+        return text.toString();
+    }
+
+
+    private static void awaitDelivered(OfflineInbox inbox, String user) throws InterruptedException {
+        for (int i = 0; i < 500 && inbox.getWaiting(user) > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, inbox.getWaiting(user));
+    }
+
+
+    @Test
+    void batchesFitALegacyMessage() throws Exception {
+        OfflineInbox inbox = new OfflineInbox(dir.resolve("inbox.dat").toString(), 64);
+        for (int i = 0; i < 64; i++) {
+            inbox.store("luke", i + repeat('é', 2000));
+        }
+        RecordingContact luke = new RecordingContact();
+        inbox.deliver("luke", luke);
+        awaitDelivered(inbox, "luke");
+
+        assertTrue(luke.received.size() > 1);
+        int messages = 0;
+        for (String batch : luke.received) {
+            assertTrue(FrameCodec.legacyLength(batch) <= FrameCodec.MAX_LEGACY);
+            FrameCodec.encodeLegacy(batch);
+            messages += batch.split("\n").length;
+        }
+        assertEquals(64 + 1, messages);
+    }
+
+
+    @Test
+    void oversizeMessageIsSentAloneInParts() throws Exception {
+        OfflineInbox inbox = new OfflineInbox(dir.resolve("inbox.dat").toString(), 64);
+        String large = repeat('☺', 40000) + "😀" + repeat('x', 30000);
+        inbox.store("luke", "before");
+        inbox.store("luke", large);
+        inbox.store("luke", "after");
+        RecordingContact luke = new RecordingContact();
+        inbox.deliver("luke", luke);
+        awaitDelivered(inbox, "luke");
+
+        StringBuilder all = new StringBuilder();
+        for (String part : luke.received) {
+            assertTrue(FrameCodec.legacyLength(part) <= FrameCodec.MAX_LEGACY);
+            assertTrue(part.isEmpty() || !Character.isLowSurrogate(part.charAt(0)));
+            all.append(part);
+        }
+        assertTrue(luke.received.size() >= 3);
+        assertTrue(all.toString().contains(large));
+        assertTrue(luke.received.get(luke.received.size() - 1).endsWith("after"));
+    }
+
+
+    @Test
+    void droppedBatchIsSentAgain() throws Exception {
+        OfflineInbox inbox = new OfflineInbox(dir.resolve("inbox.dat").toString(), 64);
+        inbox.store("luke", "hello");
+        RecordingContact luke = new RecordingContact();
+        luke.drops.set(2);
+        inbox.deliver("luke", luke);
+        awaitDelivered(inbox, "luke");
+        assertEquals(1, luke.received.size());
+        assertTrue(luke.received.get(0).endsWith("hello"));
+    }
+
+
+    @Test
+    void compactionAlongsideStores() throws Exception {
+        String path = dir.resolve("inbox.dat").toString();
+        OfflineInbox inbox = new OfflineInbox(path, 64);
+        String text = repeat('a', 1000);
+        for (int i = 0; i < 3000; i++) {
+            inbox.store("luke", text);
+        }
+        inbox.store("leia", "first");
+        RecordingContact luke = new RecordingContact();
+        inbox.deliver("luke", luke);
+        awaitDelivered(inbox, "luke");
+
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 2000; i++) {
+                    inbox.store("leia", "message " + i);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        inbox.compact();
+        writer.join();
+        assertTrue(Files.size(dir.resolve("inbox.dat")) < 3000 * 1000);
+        assertEquals(2001, inbox.getWaiting("leia"));
+
+        // The file read again holds the same waiting messages, in order
+        OfflineInbox reopened = new OfflineInbox(path, 64);
+        assertEquals(0, reopened.getWaiting("luke"));
+        assertEquals(2001, reopened.getWaiting("leia"));
+        RecordingContact leia = new RecordingContact();
+        reopened.deliver("leia", leia);
+        awaitDelivered(reopened, "leia");
+        List<String> messages = new ArrayList<>();
+        for (String batch : leia.received) {
+            for (String line : batch.split("\n")) {
+                messages.add(line);
+            }
+        }
+        assertEquals("first", messages.get(1));
+        for (int i = 0; i < 2000; i++) {
+            assertEquals("message " + i, messages.get(i + 2));
+        }
+    }
+
+
+    @Test
+    void compactionAlongsideDeliveries() throws Exception {
+        String path = dir.resolve("inbox.dat").toString();
+        OfflineInbox inbox = new OfflineInbox(path, 1);
+        String text = repeat('a', 1000);
+        for (int i = 0; i < 3000; i++) {
+            inbox.store("luke", text);
+        }
+        inbox.deliver("luke", new RecordingContact());
+        awaitDelivered(inbox, "luke");
+        for (int i = 0; i < 500; i++) {
+            inbox.store("leia", "message " + i);
+        }
+
+        // One message per batch, written a bit later: the delivery runs during the compaction
+        RecordingContact leia = new RecordingContact() {
+            @Override
+            public CompletableFuture<Void> sendConfirmed(String message) {
+                received.add(message);
+                return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS));
+            }
+        };
+        inbox.deliver("leia", leia);
+        while (inbox.getWaiting("leia") == 500) {
+            Thread.sleep(1);
+        }
+        inbox.compact();
+        awaitDelivered(inbox, "leia");
+
+        assertEquals(500, leia.received.size());
+        for (int i = 0; i < 500; i++) {
+            assertTrue(leia.received.get(i).endsWith("message " + i));
+        }
+        assertEquals(0, new OfflineInbox(path, 64).getWaiting("leia"));
+    }
+}
@@ -0,0 +1,56 @@
+package messenger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A connection that records the messages sent to it, dropping the first confirmed ones it is asked to
+ */
+class RecordingContact implements Contact {
+    final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger drops = new AtomicInteger();
+
+
+    @Override
+    public void sendMessage(String message) {
+        received.add(message);
+    }
+
+
+    @Override
+    public void offerMessage(String message) {
+        received.add(message);
+    }
+
+
+    @Override
+    public CompletableFuture<Void> sendConfirmed(String message) {
+        if (drops.getAndDecrement() > 0) {
+            return CompletableFuture.failedFuture(new IOException("Dropped"));
+        }
+        received.add(message);
+        return CompletableFuture.completedFuture(null);
+    }
+
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+
+    @Override
+    public long getDropped() {
+        return 0;
+    }
+
+
+    @Override
+    public boolean isDisconnected() {
+        return false;
+    }
+}
@@ -0,0 +1,49 @@
+package messenger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The compaction of the user journal into the userlog.txt snapshot
+ */
+class UserLogTest {
+    @TempDir
+    Path dir;
+
+
+    @Test
+    void compactionAlongsideLogins() throws Exception {
+        UserLog users = new UserLog(dir.resolve("userlog.txt").toString());
+        Thread logins = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                users.appendUser(new UserRecord("user" + i, "127.0.0.1", 5000 + i), new RecordingContact());
+                if (i % 2 == 1) {
+                    users.logoutUser("user" + (i - 1));
+                }
+            }
+        });
+        logins.start();
+        while (logins.isAlive()) {
+            users.compact();
+        }
+        logins.join();
+        users.compact();
+
+        List<String> snapshot = Files.readAllLines(dir.resolve("userlog.txt"), StandardCharsets.UTF_8);
+        assertEquals(1000, snapshot.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals((i + 1) + "; ", snapshot.get(i).substring(0, snapshot.get(i).indexOf(' ') + 1));
+            assertEquals("user" + (2 * i + 1), snapshot.get(i).split("; ")[2]);
+        }
+        assertFalse(Files.exists(dir.resolve("userlog.journal.old")));
+        assertEquals(0, Files.size(dir.resolve("userlog.journal")));
+    }
+}